@@ -1,5 +1,10 @@
 package ch.ips.g2.applyalter;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -10,12 +15,57 @@ import java.util.regex.PatternSyntaxException;
  */
 public abstract class AbstractMigration extends AbstractStatement {
     public static final long DEFAULT_STEP = 20000L;
+    public static final String THROTTLE_REPLICATION_LAG = "replication-lag";
+    public static final String THROTTLE_LOCK_WAITS = "lock-waits";
+    public static final String THROTTLE_SQL = "sql";
+    public static final long DEFAULT_THROTTLE_MS = 1000L;
+    public static final long DEFAULT_PROGRESS_MS = 60000L;
 
     protected String logid;
     protected String description;
     protected Long maxblkcnt;
     protected Long step = DEFAULT_STEP;
     protected String placeholder;
+    /**
+     * Target batch duration in milliseconds: when set, the step is adaptive (see {@link AdaptiveStep}).
+     */
+    protected Long targetms;
+    protected Long minstep;
+    protected Long maxstep;
+    /**
+     * Wall-clock budget of single run in seconds; the migration stops after the step exceeding it.
+     */
+    protected Long maxseconds;
+    /**
+     * Record progress in {@link DbInstance#getCheckpointTable()} and resume from it (requires {@link #logid}).
+     */
+    protected Boolean checkpoint;
+    /**
+     * Throttle probe: {@link #THROTTLE_REPLICATION_LAG}, {@link #THROTTLE_LOCK_WAITS} or {@link #THROTTLE_SQL}
+     * (custom {@link #throttlesql}); see {@link #createThrottle(DbInstance)}.
+     */
+    protected String throttle;
+    protected String throttlesql;
+    /**
+     * The step is not started while the probe returns more than this value.
+     */
+    protected Double throttlelimit;
+    /**
+     * Sleep between two probes in milliseconds.
+     */
+    protected Long throttlems;
+    /**
+     * Token bucket: maximum number of changed rows per second.
+     */
+    protected Long maxrowspersec;
+    /**
+     * Interval of progress reports in milliseconds (see {@link MigrationProgress}); zero = only at the end.
+     */
+    protected Long progressms;
+    /**
+     * JSONL file with timing of every batch; optional.
+     */
+    protected String tracefile;
 
     public String getLogid() {
         return logid;
@@ -57,6 +107,326 @@ public abstract class AbstractMigration extends AbstractStatement {
         this.step = step;
     }
 
+    public Long getTargetms() {
+        return targetms;
+    }
+
+    public void setTargetms(Long targetms) {
+        this.targetms = targetms;
+    }
+
+    /**
+     * Minimal adaptive step; default is 1% of {@link #getStep()}.
+     */
+    public Long getMinstep() {
+        return minstep;
+    }
+
+    public void setMinstep(Long minstep) {
+        this.minstep = minstep;
+    }
+
+    /**
+     * Maximal adaptive step; default is 100 times {@link #getStep()}.
+     */
+    public Long getMaxstep() {
+        return maxstep;
+    }
+
+    public void setMaxstep(Long maxstep) {
+        this.maxstep = maxstep;
+    }
+
+    public Long getMaxseconds() {
+        return maxseconds;
+    }
+
+    public void setMaxseconds(Long maxseconds) {
+        this.maxseconds = maxseconds;
+    }
+
+    public Boolean getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(Boolean checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public String getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(String throttle) {
+        this.throttle = throttle;
+    }
+
+    public String getThrottlesql() {
+        return throttlesql;
+    }
+
+    public void setThrottlesql(String throttlesql) {
+        this.throttlesql = throttlesql;
+    }
+
+    public Double getThrottlelimit() {
+        return throttlelimit;
+    }
+
+    public void setThrottlelimit(Double throttlelimit) {
+        this.throttlelimit = throttlelimit;
+    }
+
+    public Long getThrottlems() {
+        return throttlems;
+    }
+
+    public void setThrottlems(Long throttlems) {
+        this.throttlems = throttlems;
+    }
+
+    public Long getMaxrowspersec() {
+        return maxrowspersec;
+    }
+
+    public void setMaxrowspersec(Long maxrowspersec) {
+        this.maxrowspersec = maxrowspersec;
+    }
+
+    public Long getProgressms() {
+        return progressms;
+    }
+
+    public void setProgressms(Long progressms) {
+        this.progressms = progressms;
+    }
+
+    public String getTracefile() {
+        return tracefile;
+    }
+
+    public void setTracefile(String tracefile) {
+        this.tracefile = tracefile;
+    }
+
+    /**
+     * Copy common settings (failure handling, logid, adaptive step, budget, throttle, progress) to another
+     * migration executing the work of this one; the statement, step and placeholder are not copied.
+     */
+    protected void copySettings(AbstractMigration target) {
+        target.canfail = canfail;
+        target.ignoredSqlStates = ignoredSqlStates;
+        target.ignoredSqlCodes = ignoredSqlCodes;
+        target.logid = logid;
+        target.description = description;
+        target.maxblkcnt = maxblkcnt;
+        target.targetms = targetms;
+        target.minstep = minstep;
+        target.maxstep = maxstep;
+        target.maxseconds = maxseconds;
+        target.throttle = throttle;
+        target.throttlesql = throttlesql;
+        target.throttlelimit = throttlelimit;
+        target.throttlems = throttlems;
+        target.maxrowspersec = maxrowspersec;
+        target.progressms = progressms;
+        target.tracefile = tracefile;
+    }
+
+    /**
+     * Create progress tracker of single execution.
+     *
+     * @param d     database instance
+     * @param total total amount of work (IDs in range, number of IDs); negative = unknown
+     */
+    protected MigrationProgress createProgress(DbInstance d, long total) {
+        return createProgress(d, total, null);
+    }
+
+    /**
+     * Create progress tracker of part of single execution (partition).
+     *
+     * @param unit name of the part, null = whole execution
+     */
+    protected MigrationProgress createProgress(DbInstance d, long total, String unit) {
+        return new MigrationProgress(logid, d.getId(), unit, total,
+                progressms == null ? DEFAULT_PROGRESS_MS : progressms, tracefile);
+    }
+
+    /**
+     * Create throttle of single execution: probe ({@link #getThrottle()}, {@link #getThrottlesql()}) and/or
+     * token bucket ({@link #getMaxrowspersec()}).
+     *
+     * @param d database instance, provides the built-in probes
+     * @return the throttle, {@link Throttle#NONE} if not configured
+     * @throws ApplyAlterException invalid configuration, probe not supported by the database
+     */
+    protected Throttle createThrottle(DbInstance d) {
+        final List<Throttle> throttles = new ArrayList<Throttle>();
+        final String kind = throttle != null ? throttle.trim() : (throttlesql != null ? THROTTLE_SQL : null);
+        if (kind != null) {
+            final String sql;
+            if (THROTTLE_SQL.equals(kind)) {
+                sql = throttlesql;
+            } else if (THROTTLE_REPLICATION_LAG.equals(kind)) {
+                sql = d.getReplicationLagSql();
+            } else if (THROTTLE_LOCK_WAITS.equals(kind)) {
+                sql = d.getLockWaitSql();
+            } else {
+                throw new ApplyAlterException("invalid apply script: unknown throttle %s for %s", kind, this);
+            }
+            if (sql == null) {
+                throw new ApplyAlterException("throttle %s is not supported by %s", kind, d.getEngine());
+            }
+            if (throttlelimit == null) {
+                throw new ApplyAlterException("invalid apply script: missing \"throttlelimit\" for " + this);
+            }
+            throttles.add(new Throttle.Probe(sql, throttlelimit,
+                    throttlems == null || throttlems < 1 ? DEFAULT_THROTTLE_MS : throttlems));
+        }
+        if (maxrowspersec != null && maxrowspersec > 0) {
+            throttles.add(new Throttle.TokenBucket(maxrowspersec));
+        }
+        if (throttles.isEmpty()) {
+            return Throttle.NONE;
+        }
+        return throttles.size() == 1 ? throttles.get(0) : new Throttle.Chain(throttles);
+    }
+
+    /**
+     * Create checkpoint of this migration on given database instance.
+     *
+     * @return null if checkpoints are not enabled
+     * @throws ApplyAlterException checkpoint without logid
+     */
+    protected MigrationCheckpoint createCheckpoint(DbInstance d) {
+        if (checkpoint == null || !checkpoint) {
+            return null;
+        }
+        if (logid == null) {
+            throw new ApplyAlterException("invalid apply script: \"checkpoint\" requires \"logid\" for " + this);
+        }
+        return new MigrationCheckpoint(d, logid);
+    }
+
+    /**
+     * Create budget of single execution, see {@link #getMaxblkcnt()} and {@link #getMaxseconds()}.
+     */
+    protected Budget createBudget() {
+        return new Budget(maxblkcnt, maxseconds);
+    }
+
+    /**
+     * Migration has been stopped by budget before the end: raise exception, so that the alterscript is not
+     * marked as applied.
+     *
+     * @param position where the next run continues; null if the migration is not resumable
+     */
+    protected ApplyAlterException budgetExhausted(Budget budget, String position) {
+        if (position == null) {
+            return new ApplyAlterException("migration %s stopped after %d blocks (budget exhausted)",
+                    logid, budget.getBlocks());
+        }
+        return new ApplyAlterException("migration %s stopped after %d blocks (budget exhausted), checkpoint %s",
+                logid, budget.getBlocks(), position);
+    }
+
+    /**
+     * Create step size controller for single execution: fixed {@link #getStep()}, or adaptive one
+     * when {@link #getTargetms()} is set.
+     */
+    protected AdaptiveStep createAdaptiveStep() {
+        final long initial = step == null ? DEFAULT_STEP : step;
+        if (targetms == null || targetms <= 0) {
+            return new AdaptiveStep(initial);
+        }
+        return new AdaptiveStep(initial, targetms,
+                minstep == null ? Math.max(1, initial / 100) : minstep,
+                maxstep == null ? initial * 100 : maxstep);
+    }
+
+    /**
+     * Body of parallel worker, see {@link #runWorkers}.
+     */
+    protected interface Worker {
+        /**
+         * @param workerNum number of the worker, from 1
+         * @param worker    connected database instance of the worker
+         * @param stop      set when another worker fails; the worker should stop as soon as possible
+         */
+        void run(int workerNum, DbInstance worker, AtomicBoolean stop) throws SQLException;
+    }
+
+    /**
+     * Run the worker body in parallel threads, each one with its own connection (see
+     * {@link DbInstance#createSessionWorker}), and wait for all of them. The first failure stops all workers
+     * and is rethrown.
+     *
+     * @param dbConn     database instance
+     * @param ctx        run context, shared: every report of the workers must be synchronized on it
+     * @param parallel   number of workers
+     * @param threadName prefix of thread names
+     * @param body       worker body
+     */
+    protected void runWorkers(DbInstance dbConn, RunContext ctx, int parallel, String threadName, final Worker body)
+            throws SQLException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Throwable[] failure = new Throwable[1];
+        final List<DbInstance> workers = new ArrayList<DbInstance>(parallel);
+        final List<Thread> threads = new ArrayList<Thread>(parallel);
+        try {
+            for (int i = 0; i < parallel; i++) {
+                workers.add(dbConn.createSessionWorker(ctx));
+            }
+            for (int i = 0; i < parallel; i++) {
+                final int workerNum = i + 1;
+                final DbInstance worker = workers.get(i);
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            body.run(workerNum, worker, stop);
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                            stop.set(true);
+                        }
+                    }
+                }, threadName + workerNum);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    stop.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new ApplyAlterException("interrupted while waiting for migration workers", e);
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (DbInstance worker : workers) {
+                worker.closeConnection();
+            }
+        }
+
+        final Throwable e = failure[0];
+        if (e instanceof SQLException) {
+            throw (SQLException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new ApplyAlterException(e);
+        }
+    }
+
     public String getPlaceholder() {
         return placeholder;
     }
@@ -74,6 +444,46 @@ public abstract class AbstractMigration extends AbstractStatement {
     //-----------------------------------------------------------------------------------------------------------------
     //-----------------------------------------------------------------------------------------------------------------
 
+    /**
+     * Block count and time limits of single execution. Thread safe.
+     */
+    protected static class Budget {
+        private final long maxBlocks;
+        private final long deadline;
+        private final AtomicLong blocks = new AtomicLong();
+
+        Budget(Long maxBlocks, Long maxSeconds) {
+            this.maxBlocks = maxBlocks == null || maxBlocks <= 0 ? Long.MAX_VALUE : maxBlocks;
+            this.deadline = maxSeconds == null || maxSeconds <= 0 ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + maxSeconds * 1000;
+        }
+
+        /**
+         * Record finished block.
+         */
+        public void blockDone() {
+            blocks.incrementAndGet();
+        }
+
+        /**
+         * Record several finished blocks (sent as one batch).
+         */
+        public void blocksDone(int count) {
+            blocks.addAndGet(count);
+        }
+
+        public long getBlocks() {
+            return blocks.get();
+        }
+
+        /**
+         * Is it forbidden to start another block?
+         */
+        public boolean isExhausted() {
+            return blocks.get() >= maxBlocks || System.currentTimeMillis() >= deadline;
+        }
+    }
+
     protected static class ProcessedQuery {
         final String statement;
         final int replacements;
@@ -88,7 +498,7 @@ public abstract class AbstractMigration extends AbstractStatement {
      * Propeare SQL query: replace all occurences of {@link #getPlaceholder()} by
      *
      * @param rawStatement query to process, must contain placeholder
-     * @param replacement  the replacement string
+     * @param replacement  the replacement string, taken literally (no group references)
      * @return processed query
      */
     protected ProcessedQuery processQuery(String rawStatement, String replacement) {
@@ -98,10 +508,12 @@ public abstract class AbstractMigration extends AbstractStatement {
             Pattern pattern = Pattern.compile(placeholder);
 
             Matcher matcher = pattern.matcher(rawStatement);
+            //the replacement may contain user SQL (filters) with $ or \
+            final String quoted = Matcher.quoteReplacement(replacement);
             StringBuffer sb = new StringBuffer();
             int counter = 0;
             while (matcher.find()) {
-                matcher.appendReplacement(sb, replacement);
+                matcher.appendReplacement(sb, quoted);
                 counter++;
             }
             matcher.appendTail(sb);
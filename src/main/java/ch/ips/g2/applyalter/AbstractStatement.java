@@ -106,6 +106,13 @@ public abstract class AbstractStatement implements AlterStatement {
         rctx.reportProperty(ReportLevel.STATEMENT, "statement", statement);
     }
 
+    /**
+     * Default implementation: the statement is plain SQL.
+     */
+    public TableFootprint getTableFootprint() {
+        return TableFootprint.analyze(statement);
+    }
+
     //-----------------------------------------------------------------------------------------------------------------
     //-------------------------------------------------------------------------------------------------------------------
 
@@ -0,0 +1,121 @@
+package ch.ips.g2.applyalter;
+
+/**
+ * Step size of batch migration. In adaptive mode, the step follows the measured batch duration (AIMD):
+ * batch slower than the target halves the step, faster batch increases it by a constant increment
+ * (a quarter of the initial step). The step always stays within [min, max].
+ * <p/>
+ * Every change is reported as "step-change" into the structured log. The instance can be shared by parallel
+ * workers: it is thread safe and the reports are synchronized on the run context.
+ */
+class AdaptiveStep {
+    /**
+     * Batch faster than this fraction of the target makes the step grow.
+     */
+    public static final double GROW_THRESHOLD = 0.8;
+
+    private final long targetMs;
+    private final long min;
+    private final long max;
+    private final long increment;
+    private long step;
+
+    /**
+     * Fixed step.
+     */
+    public AdaptiveStep(long step) {
+        this(step, 0, step, step);
+    }
+
+    /**
+     * @param step     initial step
+     * @param targetMs target batch duration in milliseconds; zero or negative = fixed step
+     * @param min      minimal step
+     * @param max      maximal step
+     */
+    public AdaptiveStep(long step, long targetMs, long min, long max) {
+        if (step < 1 || min < 1 || max < min) {
+            throw new ApplyAlterException("invalid step limits: step %d, min %d, max %d", step, min, max);
+        }
+        this.targetMs = targetMs;
+        this.min = min;
+        this.max = max;
+        this.increment = Math.max(1, step / 4);
+        this.step = Math.max(min, Math.min(max, step));
+    }
+
+    public boolean isAdaptive() {
+        return targetMs > 0;
+    }
+
+    public synchronized long get() {
+        return step;
+    }
+
+    /**
+     * Adjust the step by the duration of finished batch.
+     *
+     * @param ctx        run context, used to report the change
+     * @param durationMs duration of the batch
+     * @return the new step
+     */
+    public long update(RunContext ctx, final long durationMs) {
+        if (!isAdaptive()) {
+            return get();
+        }
+        final long previous;
+        final long next;
+        synchronized (this) {
+            previous = step;
+            if (durationMs > targetMs) {
+                step = Math.max(min, step / 2);
+            } else if (durationMs < targetMs * GROW_THRESHOLD) {
+                step = Math.min(max, step + increment);
+            }
+            next = step;
+        }
+        if (next != previous) {
+            reportChange(ctx, previous, next, durationMs);
+        }
+        return next;
+    }
+
+    /**
+     * The database is overloaded (see {@link Throttle}): halve the step, if adaptive.
+     *
+     * @return the new step
+     */
+    public long shrink(RunContext ctx) {
+        if (!isAdaptive()) {
+            return get();
+        }
+        final long previous;
+        final long next;
+        synchronized (this) {
+            previous = step;
+            step = Math.max(min, step / 2);
+            next = step;
+        }
+        if (next != previous) {
+            //no batch duration: the change is made by throttle
+            reportChange(ctx, previous, next, -1);
+        }
+        return next;
+    }
+
+    private void reportChange(final RunContext ctx, final long previous, final long next, final long durationMs) {
+        synchronized (ctx) {
+            ctx.subreport("step-change", new Runnable() {
+                public void run() {
+                    ctx.reportProperty(ReportLevel.DETAIL, "from", previous);
+                    ctx.reportProperty(ReportLevel.DETAIL, "to", next);
+                    if (durationMs >= 0) {
+                        ctx.reportProperty(ReportLevel.DETAIL, "batch-ms", durationMs);
+                    } else {
+                        ctx.reportProperty(ReportLevel.DETAIL, "throttled", true);
+                    }
+                }
+            });
+        }
+    }
+}
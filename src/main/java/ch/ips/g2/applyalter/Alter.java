@@ -4,6 +4,7 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 import com.thoughtworks.xstream.annotations.XStreamImplicit;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +58,27 @@ public class Alter {
      */
     public boolean autocommit = false;
 
+    /**
+     * True if {@link #checkok} must be evaluated right before this alterscript, not prefetched together with other
+     * alterscripts: used when the result depends on earlier alterscripts of the same run in a way that can't be
+     * detected from the tables it reads (views, functions).
+     */
+    public boolean recheck = false;
+
+    /**
+     * Ids of alterscripts (from the same bundle) that must be finished before this one.
+     * When this or {@link #conflicts} is present, this alterscript can be executed concurrently with other
+     * alterscripts; otherwise, it is always executed strictly in order.
+     */
+    @XStreamImplicit(itemFieldName = "depends-on")
+    public Set<String> dependsOn;
+    /**
+     * Names of resources (usually tables) touched by this alterscript: alterscripts sharing any of them are
+     * never executed concurrently.
+     */
+    @XStreamImplicit(itemFieldName = "conflicts")
+    public Set<String> conflicts;
+
     @XStreamImplicit(itemFieldName = "datafile")
     public List<String> datafile;
     /**
@@ -156,6 +178,36 @@ public class Alter {
         this.hash = hash;
     }
 
+    public Set<String> getDependsOn() {
+        return dependsOn == null ? Collections.<String>emptySet() : dependsOn;
+    }
+
+    public Set<String> getConflicts() {
+        return conflicts == null ? Collections.<String>emptySet() : conflicts;
+    }
+
+    /**
+     * Does this alterscript declare its dependencies ({@link #dependsOn} or {@link #conflicts})?
+     *
+     * @return false = undeclared alterscript, executed strictly in order (unless its footprint is analyzed)
+     */
+    public boolean isDependencyDeclared() {
+        return dependsOn != null || conflicts != null;
+    }
+
+    /**
+     * Tables touched by all statements of this alterscript, see {@link AlterStatement#getTableFootprint()}.
+     */
+    public TableFootprint getTableFootprint() {
+        TableFootprint footprint = TableFootprint.NONE;
+        if (statements != null) {
+            for (AlterStatement s : statements) {
+                footprint = footprint.merge(s.getTableFootprint());
+            }
+        }
+        return footprint;
+    }
+
     public String getCheckok() {
         return checkok;
     }
@@ -164,6 +216,10 @@ public class Alter {
         this.checkok = check;
     }
 
+    public boolean isRecheck() {
+        return recheck;
+    }
+
     public List<Check> getChecks() {
         return checks;
     }
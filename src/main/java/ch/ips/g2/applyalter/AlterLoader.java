@@ -23,7 +23,6 @@ import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -49,11 +48,38 @@ public class AlterLoader {
         this.placeHolderMap = placeHolderMap;
     }
 
+    /**
+     * Receiver of alterscripts, see {@link #loadAlters(Handler, String...)}.
+     */
+    public interface Handler {
+        /**
+         * Alterscript has been loaded (parsed, validated and hashed, datafiles are read).
+         */
+        void loaded(Alter alterscript);
+    }
+
     /**
      * Load alterscripts from files and ZIP archives.
      */
     public Alters loadAlters(String... filenames) {
-        List<Alter> a = new ArrayList<Alter>(filenames.length);
+        final List<Alter> a = new ArrayList<Alter>(filenames.length);
+        final String sourceHash = loadAlters(new Handler() {
+            public void loaded(Alter alterscript) {
+                a.add(alterscript);
+            }
+        }, filenames);
+        return new Alters(a, sourceHash);
+    }
+
+    /**
+     * Load alterscripts from files and ZIP archives one by one, passing each of them to the handler as soon as
+     * it is loaded: the caller does not have to keep all of them in memory.
+     *
+     * @param handler   receiver of the alterscripts, called in the order of execution
+     * @param filenames files to load
+     * @return source hash, the same as {@link Alters#getSourceHash()} made by {@link #loadAlters(String...)}
+     */
+    public String loadAlters(Handler handler, String... filenames) {
         MessageDigest sourceDigest = initHashDigest();
         for (String f : filenames) {
 
@@ -73,14 +99,47 @@ public class AlterLoader {
                 } catch (MalformedURLException e) {
                     throw new ApplyAlterException("invalid URL: " + f, e);
                 }
-                a.addAll(loadUrl(url, isZip, sourceDigest));
+                loadUrl(url, isZip, sourceDigest, handler);
             } else {
                 //file
                 final File file = new File(f);
-                a.addAll(loadFile(file, isZip, sourceDigest));
+                loadFile(file, isZip, sourceDigest, handler);
             }
         }
-        return new Alters(a, bytes2hex(sourceDigest.digest()));
+        return bytes2hex(sourceDigest.digest());
+    }
+
+    /**
+     * Compute source hash of ZIP bundles without parsing them: the hash of ZIP bundle is just the digest
+     * of the whole archive, computed by streaming it.
+     *
+     * @param filenames files to load, see {@link #loadAlters(String...)}
+     * @return the same value as {@link Alters#getSourceHash()}; null if any of the files is not ZIP (hash of XML
+     * file is computed while it is parsed)
+     * @throws ApplyAlterException error reading files
+     */
+    @Nullable
+    public static String computeSourceHash(String... filenames) {
+        final MessageDigest sourceDigest = initHashDigest();
+        for (String f : filenames) {
+            if (!f.endsWith(ApplyAlter.ZIP_SUFFIX)) {
+                return null;
+            }
+            try {
+                final InputStream inputStream;
+                if (f.contains("://")) {
+                    inputStream = new URL(f).openStream();
+                } else {
+                    inputStream = new FileInputStream(f);
+                }
+                digestAndClose(inputStream, sourceDigest);
+            } catch (IOException e) {
+                throw new ApplyAlterException("Error reading zip file " + f, e);
+            } catch (DigestException e) {
+                throw new ApplyAlterException("Error computing digest of " + f, e);
+            }
+        }
+        return bytes2hex(sourceDigest.digest());
     }
 
     /**
@@ -201,7 +260,7 @@ public class AlterLoader {
      *
      * @return hash digest
      */
-    private MessageDigest initHashDigest() {
+    private static MessageDigest initHashDigest() {
         try {
             return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
@@ -214,28 +273,28 @@ public class AlterLoader {
      *
      * @param file         XML serialized Alter
      * @param sourceDigest
-     * @return new Alter instance
+     * @param handler      receiver of new Alter instances
      * @throws ch.ips.g2.applyalter.ApplyAlterException if file can not be found
      */
-    private Collection<? extends Alter> loadFile(File file, boolean zip, MessageDigest sourceDigest) {
+    private void loadFile(File file, boolean zip, MessageDigest sourceDigest, Handler handler) {
         if (!file.exists())
             throw new ApplyAlterException("file does not exist: " + file);
 
         if (zip) {
-            return loadZip(file, sourceDigest);
+            loadZip(file, sourceDigest, handler);
         } else {
             final AlterSource source = new FileSource(file);
-            return Collections.singletonList(parseScriptFile(file.toString(), source, sourceDigest));
+            handler.loaded(parseScriptFile(file.toString(), source, sourceDigest));
         }
 
     }
 
-    private Collection<? extends Alter> loadUrl(URL url, boolean zip, MessageDigest sourceDigest) {
+    private void loadUrl(URL url, boolean zip, MessageDigest sourceDigest, Handler handler) {
         if (zip) {
-            return loadZip(url, sourceDigest);
+            loadZip(url, sourceDigest, handler);
         } else {
             final AlterSource source = new UrlSource(url);
-            return Collections.singletonList(parseScriptFile(url.toString(), source, sourceDigest));
+            handler.loaded(parseScriptFile(url.toString(), source, sourceDigest));
         }
     }
 
@@ -246,12 +305,12 @@ public class AlterLoader {
      *
      * @param zipfile      zip file containing XML files
      * @param sourceDigest source digest
-     * @return list of new Alter instances
+     * @param handler      receiver of new Alter instances
      * @throws ch.ips.g2.applyalter.ApplyAlterException if error occurs during zip file processing
      */
-    protected List<Alter> loadZip(File zipfile, MessageDigest sourceDigest) {
+    protected void loadZip(File zipfile, MessageDigest sourceDigest, Handler handler) {
         try {
-            return loadZip(zipfile.toURI().toURL(), sourceDigest);
+            loadZip(zipfile.toURI().toURL(), sourceDigest, handler);
         } catch (IOException e) {
             throw new ApplyAlterException("Error reading zip file " + zipfile, e);
         }
@@ -264,10 +323,10 @@ public class AlterLoader {
      * Implementation note: the input zip is actually read several times.
      *
      * @param zipfile zip file containing XML files
-     * @return list of new Alter instances
+     * @param handler receiver of new Alter instances
      * @throws ch.ips.g2.applyalter.ApplyAlterException if error occurs during zip file processing
      */
-    protected List<Alter> loadZip(URL zipfile, @Nonnull MessageDigest sourceDigest) {
+    protected void loadZip(URL zipfile, @Nonnull MessageDigest sourceDigest, Handler handler) {
         final List<String> alterNames;
         try {
             InputStream inputStream = zipfile.openStream();
@@ -292,17 +351,13 @@ public class AlterLoader {
             throw new ApplyAlterException("Error computing digest of " + zipfile, e);
         }
 
-        List<Alter> a = new ArrayList<Alter>(alterNames.size());
         Collections.sort(alterNames);
 
         for (String alterName : alterNames) {
             AlterSource source = new JarUrlSource(zipfile, alterName);
             //note: this.sourceDigest already contains whole zip, do NOT update it with alterscript content!
-            Alter alterscript = parseScriptFile(alterName, source, null);
-            a.add(alterscript);
+            handler.loaded(parseScriptFile(alterName, source, null));
         }
-
-        return a;
     }
 
     //-----------------------------------------------------------------------------------------------------------------
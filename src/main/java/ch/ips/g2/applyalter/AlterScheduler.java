@@ -0,0 +1,165 @@
+package ch.ips.g2.applyalter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scheduler of alterscripts: builds dependency graph and splits alterscripts into "waves". All alterscripts in one
+ * wave are independent and can be executed concurrently; waves are executed one after another.
+ * <p/>
+ * Every alterscript has a {@link TableFootprint}: declared one ({@link Alter#getConflicts()}, all resources
+ * are considered as written), the analyzed one ({@link Alter#getTableFootprint()}, only when analysis is enabled)
+ * or unknown. Rules:
+ * <ul>
+ * <li>alterscript with unknown footprint is a barrier: it waits for all previous alterscripts and all following
+ * alterscripts wait for it (= the original sequential order)</li>
+ * <li>other alterscript waits for the last barrier, for all alterscripts listed in depends-on
+ * and for all previous alterscripts with conflicting footprint</li>
+ * </ul>
+ * The wave of each alterscript is the length of the longest dependency path leading to it.
+ */
+class AlterScheduler {
+    private final boolean analyze;
+
+    /**
+     * @param analyze analyze footprint of alterscripts without declaration; false = such alterscripts are barriers
+     */
+    public AlterScheduler(boolean analyze) {
+        this.analyze = analyze;
+    }
+
+    /**
+     * Is there anything to schedule? When no alterscript declares dependencies, every wave contains just one
+     * alterscript.
+     */
+    public static boolean hasDeclarations(Iterable<Alter> alters) {
+        for (Alter a : alters) {
+            if (a.isDependencyDeclared()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Footprint used for scheduling.
+     */
+    protected TableFootprint getFootprint(Alter a) {
+        if (a.isDependencyDeclared()) {
+            return TableFootprint.ofResources(a.getConflicts());
+        } else if (analyze) {
+            return a.getTableFootprint();
+        } else {
+            return TableFootprint.UNKNOWN;
+        }
+    }
+
+    /**
+     * Split alterscripts into waves. The dependency graph and the waves are reported as "schedule"
+     * into the structured log.
+     *
+     * @param ctx    run context, used to report the decisions
+     * @param alters alterscripts in the original order
+     * @return waves, in execution order; alterscripts in every wave keep the original order
+     * @throws ApplyAlterException invalid dependency (for example, to the following alterscript)
+     */
+    public List<List<Alter>> buildWaves(final RunContext ctx, final List<Alter> alters) throws ApplyAlterException {
+        final int size = alters.size();
+        final int[] levels = new int[size];
+        final TableFootprint[] footprints = new TableFootprint[size];
+        final List<Set<String>> edges = new ArrayList<Set<String>>(size);
+        final Map<String, Integer> indexById = new HashMap<String, Integer>();
+        for (int i = 0; i < size; i++) {
+            indexById.put(normalizeId(alters.get(i).getId()), i);
+            footprints[i] = getFootprint(alters.get(i));
+        }
+
+        int maxLevel = -1;
+        int barrier = -1;
+        for (int i = 0; i < size; i++) {
+            final Alter a = alters.get(i);
+            //ids of alterscripts this one waits for
+            final Set<String> after = new LinkedHashSet<String>();
+            edges.add(after);
+            if (!footprints[i].isKnown()) {
+                levels[i] = maxLevel + 1;
+                for (int j = Math.max(barrier, 0); j < i; j++) {
+                    after.add(alters.get(j).getId());
+                }
+                barrier = i;
+            } else {
+                int level = -1;
+                if (barrier >= 0) {
+                    level = levels[barrier];
+                    after.add(alters.get(barrier).getId());
+                }
+                for (String dep : a.getDependsOn()) {
+                    final Integer depIdx = indexById.get(normalizeId(dep));
+                    if (depIdx == null) {
+                        ctx.report(ReportLevel.DETAIL, "%s depends on %s, which is not in this bundle",
+                                a.getId(), dep);
+                        continue;
+                    }
+                    if (depIdx >= i) {
+                        throw new ApplyAlterException("invalid depends-on in %s: %s is not a previous alterscript",
+                                a.getId(), dep);
+                    }
+                    level = Math.max(level, levels[depIdx]);
+                    after.add(alters.get(depIdx).getId());
+                }
+                for (int j = i - 1; j > barrier; j--) {
+                    if (footprints[i].conflictsWith(footprints[j])) {
+                        level = Math.max(level, levels[j]);
+                        after.add(alters.get(j).getId());
+                    }
+                }
+                levels[i] = level + 1;
+            }
+            maxLevel = Math.max(maxLevel, levels[i]);
+        }
+
+        final List<List<Alter>> waves = new ArrayList<List<Alter>>();
+        for (int level = 0; level <= maxLevel; level++) {
+            waves.add(new ArrayList<Alter>());
+        }
+        for (int i = 0; i < size; i++) {
+            waves.get(levels[i]).add(alters.get(i));
+        }
+
+        ctx.subreport("schedule", new Runnable() {
+            public void run() {
+                for (int i = 0; i < size; i++) {
+                    final int idx = i;
+                    ctx.subreport("node", new Runnable() {
+                        public void run() {
+                            ctx.reportProperty(ReportLevel.DETAIL, "id", alters.get(idx).getId());
+                            ctx.reportProperty(ReportLevel.DETAIL, "wave", levels[idx] + 1);
+                            ctx.reportProperty(ReportLevel.DETAIL, "footprint", footprints[idx]);
+                            ctx.reportProperty(ReportLevel.DETAIL, "after", edges.get(idx));
+                        }
+                    });
+                }
+                ctx.reportProperty(ReportLevel.ALTER, "waves", waves.size());
+            }
+        });
+        return waves;
+    }
+
+    /**
+     * Alterscript id can be referenced with or without the ".xml" suffix.
+     */
+    private static String normalizeId(String id) {
+        if (id == null) {
+            return null;
+        }
+        id = id.trim();
+        if (id.endsWith(ApplyAlter.XML_SUFFIX)) {
+            return id.substring(0, id.length() - ApplyAlter.XML_SUFFIX.length());
+        }
+        return id;
+    }
+}
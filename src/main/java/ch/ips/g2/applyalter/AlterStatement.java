@@ -26,6 +26,13 @@ public interface AlterStatement {
 
     void recordStructuredInfo(RunContext rctx);
 
+    /**
+     * Tables read and written by this statement; used to find alterscripts that can run concurrently.
+     *
+     * @return footprint, {@link TableFootprint#UNKNOWN} when the statement can't be analyzed
+     */
+    TableFootprint getTableFootprint();
+
     /**
      * Is the statement allowed to fail?
      *
@@ -0,0 +1,191 @@
+package ch.ips.g2.applyalter;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Alterscripts loaded by a background thread ahead of execution. At most {@link #getCapacity()} loaded alterscripts
+ * (with their datafiles) wait in the queue; the consumer drops every alterscript once it is applied, so the memory
+ * needed does not depend on the bundle size.
+ * <p/>
+ * The stream can be iterated only once. Source hash is available when the iteration finishes; loading errors
+ * are re-thrown from {@link Iterator#next()} / {@link Iterator#hasNext()}.
+ */
+class AlterStream implements Iterable<Alter>, Closeable {
+    /**
+     * Default number of alterscripts loaded ahead.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final AlterLoader loader;
+    private final String[] filenames;
+    private final int capacity;
+    private final BlockingQueue<Object> queue;
+    private Thread thread;
+    private volatile boolean closed;
+
+    private String sourceHash;
+    private int count;
+
+    /**
+     * Marker of the end of the stream.
+     */
+    private static class End {
+        final String sourceHash;
+        final RuntimeException failure;
+
+        End(String sourceHash, RuntimeException failure) {
+            this.sourceHash = sourceHash;
+            this.failure = failure;
+        }
+    }
+
+    public AlterStream(AlterLoader loader, int capacity, String... filenames) {
+        if (capacity < 1) {
+            throw new ApplyAlterException("invalid stream capacity: %d", capacity);
+        }
+        this.loader = loader;
+        this.capacity = capacity;
+        this.filenames = filenames;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Source hash: the same as {@link Alters#getSourceHash()}, available after all alterscripts are read.
+     *
+     * @throws IllegalStateException stream not finished yet
+     */
+    public String getSourceHash() {
+        if (sourceHash == null) {
+            throw new IllegalStateException("alterscripts not loaded yet");
+        }
+        return sourceHash;
+    }
+
+    /**
+     * Number of alterscripts read from the stream so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public synchronized Iterator<Alter> iterator() {
+        if (thread != null) {
+            throw new IllegalStateException("stream can be iterated only once");
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                load();
+            }
+        }, "applyalter-loader");
+        thread.setDaemon(true);
+        thread.start();
+
+        return new Iterator<Alter>() {
+            private Object next;
+
+            public boolean hasNext() {
+                if (next == null) {
+                    next = take();
+                }
+                if (next instanceof End) {
+                    final End end = (End) next;
+                    if (end.failure != null) {
+                        throw end.failure;
+                    }
+                    sourceHash = end.sourceHash;
+                    return false;
+                }
+                return true;
+            }
+
+            public Alter next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Alter alter = (Alter) next;
+                //forget it: the caller drops the alterscript when it is applied
+                next = null;
+                count++;
+                return alter;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Object take() {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplyAlterException("interrupted while waiting for alterscripts", e);
+        }
+    }
+
+    /**
+     * Body of the loader thread.
+     */
+    private void load() {
+        try {
+            End end;
+            try {
+                final String hash = loader.loadAlters(new AlterLoader.Handler() {
+                    public void loaded(Alter alterscript) {
+                        put(alterscript);
+                    }
+                }, filenames);
+                end = new End(hash, null);
+            } catch (StreamClosedException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                end = new End(null, e);
+            }
+            put(end);
+        } catch (StreamClosedException e) {
+            //closed by the consumer, nobody is interested in the rest
+        }
+    }
+
+    private void put(Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            throw new StreamClosedException();
+        }
+        if (closed) {
+            throw new StreamClosedException();
+        }
+    }
+
+    /**
+     * Stop the loader (when the execution failed before reading everything) and forget queued alterscripts.
+     */
+    public void close() {
+        closed = true;
+        final Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        queue.clear();
+    }
+
+    /**
+     * Stream has been closed by consumer: stop loading.
+     */
+    @SuppressWarnings("serial")
+    private static class StreamClosedException extends RuntimeException {
+    }
+}
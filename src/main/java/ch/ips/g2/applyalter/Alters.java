@@ -2,6 +2,7 @@ package ch.ips.g2.applyalter;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -10,19 +11,40 @@ import java.util.List;
 public class Alters {
     @Nonnull
     final List<Alter> alters;
+    final int count;
     @Nullable
     final String sourceHash;
 
     Alters(@Nonnull List<Alter> alters, @Nullable String sourceHash) {
         this.alters = alters;
+        this.count = alters.size();
         this.sourceHash = sourceHash;
     }
 
+    /**
+     * Alterscripts that have not been kept in memory (streaming mode): only count is known.
+     */
+    Alters(int count, @Nullable String sourceHash) {
+        this.alters = Collections.emptyList();
+        this.count = count;
+        this.sourceHash = sourceHash;
+    }
+
+    /**
+     * The alterscripts; empty when they have been applied in streaming mode and not kept.
+     */
     @Nonnull
     public List<Alter> getAlters() {
         return alters;
     }
 
+    /**
+     * Number of alterscripts (even the ones not kept in memory).
+     */
+    public int getCount() {
+        return count;
+    }
+
     /**
      * Source hash: when not present, these alterscripts are internal.
      */
@@ -4,6 +4,7 @@ import ch.ips.g2.applyalter.logreport.ReportedResult;
 import ch.ips.g2.applyalter.logreport.StructuredLog;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.XStreamException;
 import org.apache.commons.cli.BasicParser;
@@ -38,10 +39,12 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -119,6 +122,26 @@ public class ApplyAlter {
      * Query the APPLYALTER_PKG table: limit to specified hash (instead of the alterscripts one).
      */
     public static final String QUERY_PKG_HASH = "query-pkg-hash";
+    /**
+     * Maximum number of database instances processed concurrently.
+     */
+    public static final String PARALLEL = "parallel";
+    /**
+     * Every database instance processes all alterscripts on its own, without waiting for other instances.
+     */
+    public static final String PIPELINE = "pipeline";
+    /**
+     * Analyze tables touched by alterscripts and run non-conflicting alterscripts concurrently.
+     */
+    public static final String ANALYZE = "analyze";
+    /**
+     * Load alterscripts in background and apply them while the rest is being loaded.
+     */
+    public static final String STREAM = "stream";
+    /**
+     * Do nothing when the package (bundle) has been already applied to all instances.
+     */
+    public static final String SKIP_APPLIED_PKG = "skip-applied-pkg";
 
 
     /**
@@ -135,7 +158,15 @@ public class ApplyAlter {
             "applyalter_hash_db2.xml", "applyalter_hash_pgsql.xml",
             "applyalter_idindex_db2.xml", "applyalter_idindex_pgsql.xml",
             "applyalter_pkg_db2.xml", "applyalter_pkg_pgsql.xml", "applyalter_pkg_mysql.xml",
+            "applyalter_state_db2.xml", "applyalter_state_pgsql.xml", "applyalter_state_mysql.xml",
+            "applyalter_version_db2.xml", "applyalter_version_pgsql.xml", "applyalter_version_mysql.xml",
+            "applyalter_checkpoint_db2.xml", "applyalter_checkpoint_pgsql.xml", "applyalter_checkpoint_mysql.xml",
     };
+    /**
+     * Version of internal tables, recorded in {@link DbInstance#getVersionTable()} after the internal scripts
+     * are applied. Must be increased whenever {@link #INTERNAL_SCRIPTS} change!
+     */
+    static final int INTERNAL_VERSION = 2;
 
     /**
      * XML validator
@@ -155,10 +186,14 @@ public class ApplyAlter {
 
     protected XStream xstream = new XStream();
     protected String username;
-    protected Multimap<String, String> unapplied = ArrayListMultimap.create();
+    protected Multimap<String, String> unapplied =
+            Multimaps.synchronizedMultimap(ArrayListMultimap.<String, String>create());
     private boolean logTableUsed;
     private String environment;
     private boolean unknownInstancesIgnored = false;
+    private boolean pipelined = false;
+    private boolean footprintAnalyzed = false;
+    private boolean streamed = false;
 
 
     protected RunMode getRunMode() {
@@ -181,6 +216,58 @@ public class ApplyAlter {
         this.logTableUsed = logTableUsed;
     }
 
+    /**
+     * Maximum number of database instances processed concurrently (1 = serial processing, the default).
+     * Each instance has its own connection, so checks, statements, log records and commits
+     * of single alterscript run concurrently on all instances.
+     */
+    public void setParallelism(int parallelism) {
+        db.setParallelism(parallelism);
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Pipelined mode: every database instance works through the whole list of alterscripts on its own,
+     * committing each alterscript independently of other instances. Useful with {@link #setParallelism(int)},
+     * so that the slowest instance does not hold back the others.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    public boolean isFootprintAnalyzed() {
+        return footprintAnalyzed;
+    }
+
+    /**
+     * Analyze tables read and written by alterscripts (see {@link TableFootprint}) and run alterscripts
+     * with disjoint footprints concurrently; requires {@link #setParallelism(int)} greater than 1.
+     * Alterscripts that can't be analyzed are executed in order, as barriers.
+     */
+    public void setFootprintAnalyzed(boolean footprintAnalyzed) {
+        this.footprintAnalyzed = footprintAnalyzed;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * Streaming mode: alterscripts are loaded by a background thread, only a few of them ahead of the execution,
+     * and every alterscript is forgotten once it is applied. The execution starts as soon as the first alterscript
+     * is loaded and the memory does not grow with the size of the bundle.
+     * <p/>
+     * Alterscripts are then checked and applied one by one: an invalid alterscript stops the run after the previous
+     * ones have been applied. Not compatible with {@link #setPipelined(boolean)} and
+     * {@link #setFootprintAnalyzed(boolean)}; dependency declarations are ignored.
+     */
+    public void setStreamed(boolean streamed) {
+        this.streamed = streamed;
+    }
+
     /**
      * Get configured environment.
      *
@@ -281,6 +368,9 @@ public class ApplyAlter {
                 MigrationProc.class,
                 MigrationIdRange.class,
                 MigrationIdList.class,
+                MigrationKeyset.class,
+                MigrationAuto.class,
+                RepeatBatch.class,
                 PgInstance.class,
                 OracleInstance.class,
                 MysqlInstance.class,
@@ -298,6 +388,11 @@ public class ApplyAlter {
             //no internal scripts needed
             return;
         }
+        final List<DbInstance> outdated = findOutdatedInternalTables();
+        if (outdated.isEmpty()) {
+            runContext.report(DETAIL, "internal tables are up to date (version %d)", INTERNAL_VERSION);
+            return;
+        }
 
         final RunContext backupCtx = this.runContext;
         AlterLoader alterLoader = new AlterLoader(xstream, validator, createPlaceHolderMap());
@@ -316,6 +411,67 @@ public class ApplyAlter {
 
         //restore the context
         this.runContext = backupCtx;
+
+        for (DbInstance d : outdated) {
+            markInternalTables(d);
+        }
+    }
+
+    /**
+     * Find database instances where the internal tables are missing or outdated: one query per instance.
+     *
+     * @return instances that need the internal scripts
+     */
+    private List<DbInstance> findOutdatedInternalTables() {
+        final List<DbInstance> outdated = Collections.synchronizedList(new ArrayList<DbInstance>());
+        db.forEachInstance(runContext, db.getEntries(), new ParallelExecutor.Worker<DbInstance>() {
+            public void run(DbInstance d, RunContext ctx) {
+                final Connection c = d.getConnection(ctx);
+                PreparedStatement s = null;
+                ResultSet r = null;
+                int version = 0;
+                try {
+                    s = c.prepareStatement("select max(version) from " + d.getVersionTable());
+                    r = s.executeQuery();
+                    if (r.next()) {
+                        version = r.getInt(1);
+                    }
+                } catch (SQLException e) {
+                    ctx.report(DETAIL, "failed to read %s: %s", d.getVersionTable(), e.getMessage());
+                } finally {
+                    DbUtils.close(s, r);
+                    try {
+                        c.rollback();
+                    } catch (SQLException e) {
+                        //ignore
+                    }
+                }
+                if (version < INTERNAL_VERSION) {
+                    ctx.report(DETAIL, "internal tables of %s are outdated (version %d)", d.getId(), version);
+                    outdated.add(d);
+                }
+            }
+        });
+        return outdated;
+    }
+
+    /**
+     * Record current version of internal tables.
+     */
+    private void markInternalTables(DbInstance d) {
+        final Connection c = d.getConnection(runContext);
+        try {
+            DbUtils.executeUpdate(c, "delete from " + d.getVersionTable());
+            DbUtils.executeUpdate(c, "insert into " + d.getVersionTable() + " (version) values (?)", INTERNAL_VERSION);
+            c.commit();
+        } catch (SQLException e) {
+            runContext.report(DETAIL, "failed to write %s: %s", d.getVersionTable(), e.getMessage());
+            try {
+                c.rollback();
+            } catch (SQLException e1) {
+                //ignore
+            }
+        }
     }
 
     @Nonnull
@@ -336,6 +492,31 @@ public class ApplyAlter {
     }
 
 
+    /**
+     * Has this very package been already applied to all database instances? The source hash is computed
+     * without parsing the alterscripts and looked up in the applyalter_pkg table, so the check is cheap.
+     * Only ZIP bundles are supported (hash of XML file is computed while parsing it).
+     *
+     * @param alterFiles files with alterscripts, see {@link #apply(boolean, String...)}
+     * @return source hash of the package if it has been applied everywhere; null otherwise
+     */
+    @Nullable
+    public String findAppliedPackage(String... alterFiles) {
+        if (pkgLogTable == null || alterFiles.length == 0) {
+            return null;
+        }
+        final String sourceHash = AlterLoader.computeSourceHash(alterFiles);
+        if (sourceHash == null) {
+            runContext.report(MAIN, "package check is available only for zip bundles");
+            return null;
+        }
+        try {
+            return pkgLogTable.isApplied(sourceHash) ? sourceHash : null;
+        } finally {
+            db.closeConnections();
+        }
+    }
+
     /**
      * Apply alter scripts (.xml/.zip) to all or selected database instances
      *
@@ -345,6 +526,9 @@ public class ApplyAlter {
     public Alters apply(boolean validateXml, String... alterFiles)
             throws ApplyAlterException {
         AlterLoader ldr = new AlterLoader(xstream, validator, createPlaceHolderMap());
+        if (isStreamed()) {
+            return applyStreamed(new AlterStream(ldr, AlterStream.DEFAULT_CAPACITY, alterFiles));
+        }
         Alters a = ldr.loadAlters(alterFiles);
         // actually apply them
         apply(a.getAlters(), a.getSourceHash());
@@ -354,15 +538,17 @@ public class ApplyAlter {
     /**
      * Check if object exists in database, which means an alter was applied already.
      *
+     * @param ctx run context
      * @param d database instance
      * @param c Connection to database
      * @param a check object @return true if object exists in database
      * @throws ApplyAlterException failed to check (database error?)
      */
-    protected boolean check(DbInstance d, Connection c, Check a, String schema) throws ApplyAlterException {
+    protected boolean check(RunContext ctx, DbInstance d, Connection c, Check a, String schema)
+            throws ApplyAlterException {
         a.check();
         try {
-            return d.check(runContext, c, a, schema);
+            return d.check(ctx, c, a, schema);
         } catch (SQLException e) {
             throw new ApplyAlterException("Can not check " + a, e);
         } catch (UnsupportedOperationException e) {
@@ -373,18 +559,19 @@ public class ApplyAlter {
     /**
      * Custom check if an alter was applieds already.
      *
+     * @param ctx run context
      * @param c   Connection to database
      * @param sql custom SQL statement
      * @return true if sql is not null and result of sql statement is equal {@link #CHECK_OK} value
      * @throws ApplyAlterException failed to check (database error?)
      */
-    protected boolean check(Connection c, String sql) throws ApplyAlterException {
+    protected boolean check(RunContext ctx, Connection c, String sql) throws ApplyAlterException {
         if (sql == null || "".equals(sql.trim()))
             return false;
         PreparedStatement s = null;
         ResultSet rs = null;
         try {
-            runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s", sql);
+            ctx.report(ReportLevel.STATEMENT_STEP, "Check: %s", sql);
             s = c.prepareStatement(sql);
             rs = s.executeQuery();
             if (!rs.next())
@@ -398,6 +585,23 @@ public class ApplyAlter {
         }
     }
 
+    /**
+     * Evaluate {@link Alter#getCheckok()}: use the prefetched result when available.
+     *
+     * @return true if the alterscript has already been applied
+     * @see #prefetchCheckok(Collection)
+     */
+    protected boolean checkok(RunContext ctx, DbInstance d, Connection c, Alter alter) throws ApplyAlterException {
+        if (alter.getCheckok() != null && !alter.isRecheck()) {
+            final Boolean prefetched = d.getCheckokCache().get(alter);
+            if (prefetched != null) {
+                ctx.report(ReportLevel.STATEMENT_STEP, "Check: %s (prefetched: %s)", alter.getCheckok(), prefetched);
+                return prefetched;
+            }
+        }
+        return check(ctx, c, alter.getCheckok());
+    }
+
     /**
      * Check if all database types (and environments) in alters are defined in database configuration.
      * If any alterscript contains unknown database it, exception is thrown.
@@ -456,6 +660,44 @@ public class ApplyAlter {
         }
     }
 
+    /**
+     * Apply alterscripts from stream, see {@link #setStreamed(boolean)}.
+     *
+     * @param stream alterscripts to apply
+     * @return applied alterscripts: only the source hash and the count, the alterscripts are not kept
+     * @throws ApplyAlterException if one of statements can not be executed
+     */
+    protected Alters applyStreamed(AlterStream stream) throws ApplyAlterException {
+        if (isPipelined() || isFootprintAnalyzed()) {
+            throw new ApplyAlterException("streaming mode can't be combined with pipelined mode or footprint analysis");
+        }
+        try {
+            final ApplyAlterExceptions aae = new ApplyAlterExceptions(db.isIgnorefailures());
+            runContext.report(ALTER, "Executing alterscripts on %d database instances, loading up to %d ahead",
+                    db.getEntries().size(), stream.getCapacity());
+            for (final Alter a : stream) {
+                checkDbIds(Collections.singletonList(a));
+                runContext.subreport("alterscript", new Runnable() {
+                    public void run() {
+                        applySingleAlter(a, aae);
+                    }
+                });
+            }
+            if (!aae.isEmpty()) throw aae;
+
+            final String sourceHash = stream.getSourceHash();
+            runContext.reportProperty(ALTER, "sourceHash", sourceHash);
+            runContext.report(ALTER, "%d alterscripts done, source hash: %s", stream.getCount(), sourceHash);
+            if (pkgLogTable != null) {
+                pkgLogTable.savelog_pkg(sourceHash);
+            }
+            return new Alters(stream.getCount(), sourceHash);
+        } finally {
+            stream.close();
+            db.closeConnections();
+        }
+    }
+
     /**
      * Apply alter scripts to all or selected database instances
      *
@@ -471,24 +713,43 @@ public class ApplyAlter {
                 alters.size(), db.getEntries().size());
 
         checkDbIds(alters);
-
-        // for all alter scripts
-        for (final Alter a : alters) {
-            runContext.subreport("alterscript", new Runnable() {
-                public void run() {
-                    applySingleAlter(a, aae);
-                }
-            });
+        prefetchLogState(alters);
+        prefetchCheckok(alters);
+
+        if (isPipelined()) {
+            applyPipelined(alters, aae);
+        } else if (db.getExecutor().isParallel() && (isFootprintAnalyzed() || AlterScheduler.hasDeclarations(alters))) {
+            applyScheduled(new ArrayList<Alter>(alters), aae);
+        } else {
+            // for all alter scripts
+            for (final Alter a : alters) {
+                runContext.subreport("alterscript", new Runnable() {
+                    public void run() {
+                        applySingleAlter(a, aae);
+                    }
+                });
+            }
         }
 
         if (!aae.isEmpty()) throw aae;
     }
 
-    private void applySingleAlter(final Alter a, ApplyAlterExceptions aae) {
-        // There is no simple way to rollback auto committed command executions, so the alterscript in DRY mode is skipped.
-        if (a.autocommit && RunMode.DRY.equals(getRunMode())) {
-            runContext.report(ALTER, "Alterscript with autocommit ON can't be run in %s mode.", RunMode.DRY.name());
-            runContext.reportProperty(ALTER, "result", ReportedResult.SKIPPED);
+    /**
+     * There is no simple way to rollback auto committed command executions, so the alterscript in DRY mode is skipped.
+     *
+     * @return true if the alterscript has been skipped (and reported so)
+     */
+    private static boolean skipAutocommitInDryRun(Alter a, RunContext ctx) {
+        if (a.autocommit && RunMode.DRY.equals(ctx.getRunMode())) {
+            ctx.report(ALTER, "Alterscript with autocommit ON can't be run in %s mode.", RunMode.DRY.name());
+            ctx.reportProperty(ALTER, "result", ReportedResult.SKIPPED);
+            return true;
+        }
+        return false;
+    }
+
+    private void applySingleAlter(final Alter a, final ApplyAlterExceptions aae) {
+        if (skipAutocommitInDryRun(a, runContext)) {
             return;
         }
 
@@ -498,96 +759,312 @@ public class ApplyAlter {
         runContext.reportProperty(ALTER, "hash", a.getHash());
 
         // for all (or selected) databases
-        Set<ReportedResult> results = EnumSet.noneOf(ReportedResult.class);
-        for (final DbInstance d : db.getEntries()) {
-            //check engine
-            if (a.engine != null && !a.engine.equalsIgnoreCase(d.getEngine())) {
-                //skip
-                runContext.report(ALTER, "alterscript is only for %s, database is %s, skipping", a.engine, d.getEngine());
-                results.add(ReportedResult.SKIPPED);
-                continue;
+        final Set<ReportedResult> results = Collections.synchronizedSet(EnumSet.noneOf(ReportedResult.class));
+        db.forEachInstance(runContext, db.getEntries(), new ParallelExecutor.Worker<DbInstance>() {
+            public void run(DbInstance d, RunContext ctx) {
+                final ReportedResult result = applySingleAlter(a, d, ctx, aae);
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+        });
+        if (!a.autocommit) {
+            // commit each alter on used databases
+            if (aae.isEmpty() && RunMode.SHARP.equals(getRunMode())) {
+                db.commitUsed(runContext);
+            } else {
+                db.rollbackUsed(runContext);
             }
+        }
+        //structured report: pick one status - in most cases, there is only one result anyway
+        if (results.size() == 1) {
+            runContext.reportProperty(ALTER, "result", results.iterator().next());
+        }
+        db.resetDbAutocommit();
+    }
 
-            if (a.environment != null && !a.environment.contains(getEnvironment())) {
-                //skip
-                runContext.report(ALTER, "alterscript is for environment %s, database is %s, skipping",
-                        a.environment, getEnvironment());
-                results.add(ReportedResult.SKIPPED);
+    /**
+     * Scheduled mode: alterscripts are split into waves by {@link AlterScheduler}; the waves are executed in order,
+     * alterscripts of one wave concurrently (each with its own connections, see {@link DbInstance#createWorker()}).
+     * Every alterscript is still committed on all instances at once, like in the standard mode.
+     */
+    private void applyScheduled(List<Alter> alters, final ApplyAlterExceptions aae) {
+        final List<List<Alter>> waves = new AlterScheduler(isFootprintAnalyzed()).buildWaves(runContext, alters);
+        runContext.report(ALTER, "%d alterscripts scheduled in %d waves", alters.size(), waves.size());
+        for (int i = 0; i < waves.size(); i++) {
+            final List<Alter> wave = waves.get(i);
+            if (wave.size() == 1) {
+                runContext.subreport("alterscript", new Runnable() {
+                    public void run() {
+                        applySingleAlter(wave.get(0), aae);
+                    }
+                });
                 continue;
             }
+            final List<String> ids = new ArrayList<String>(wave.size());
+            for (Alter a : wave) {
+                ids.add(a.getId());
+            }
+            runContext.report(ALTER, "wave %d: executing %s concurrently", i + 1, ids);
+            db.getExecutor().forEach(runContext, wave, new ParallelExecutor.Worker<Alter>() {
+                public void run(final Alter a, final RunContext ctx) {
+                    ctx.subreport("alterscript", new Runnable() {
+                        public void run() {
+                            applyConcurrentAlter(a, ctx, aae);
+                        }
+                    });
+                }
+            });
+        }
+    }
 
-            // apply to this instance?
-            if (a.isAllInstances() || a.getInstance().contains(d.getType())) {
-                long start = System.currentTimeMillis();
-                String dbid = d.getId();
-                try {
-                    Connection c = d.getConnection(runContext);
-                    runContext.report(DETAIL, "Database instance %s %s, schema %s", dbid, d.getUrl(), a.getSchema());
-                    d.setSchema(a.getSchema());
-                    d.setIsolation(a.getIsolation());
-
-                    // do checks
-                    if (executeChecks(a, d, c)) {
-                        //alter already applied
-                        runContext.report(ALTER, "Alter already applied, skipping");
-                        continue;
-                    }
+    /**
+     * Apply single alterscript on all instances, using private connections: other alterscripts run at the same time.
+     * Instances are processed one by one (the worker threads are already busy with the other alterscripts).
+     */
+    private void applyConcurrentAlter(Alter a, RunContext ctx, ApplyAlterExceptions aae) {
+        if (skipAutocommitInDryRun(a, ctx)) {
+            return;
+        }
+        ctx.reportProperty(ALTER, "id", a.getId());
+        ctx.reportProperty(ALTER, "hash", a.getHash());
 
-                    if (RunMode.LOOK.equals(getRunMode())) {
-                        runContext.report(MAIN, "Alter %s seems unapplied", a.getId());
-                        unapplied.put(d.getId(), a.getId());
-                        continue;
+        final Set<ReportedResult> results = EnumSet.noneOf(ReportedResult.class);
+        final List<DbInstance> workers = new ArrayList<DbInstance>();
+        boolean failed = true;
+        try {
+            for (DbInstance entry : db.getEntries()) {
+                final DbInstance d = entry.createWorker();
+                workers.add(d);
+                if (a.autocommit) {
+                    //fresh connection: open it now, to be able to switch autocommit
+                    d.getConnection(ctx);
+                    d.setAutoCommit(true);
+                }
+                final ReportedResult result = applySingleAlter(a, d, ctx, aae);
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            failed = false;
+        } finally {
+            if (!a.autocommit) {
+                //note: aae is shared by all alterscripts: failure of any of them stops committing, like in the standard mode
+                //failed: exception thrown on some instance, roll back all of them
+                final boolean commit = !failed && aae.isEmpty() && RunMode.SHARP.equals(ctx.getRunMode())
+                        && !results.contains(ReportedResult.FAILED_IGNORED);
+                for (DbInstance d : workers) {
+                    if (d.isUsed()) {
+                        endTransaction(ctx, d, commit);
                     }
-                    d.markConnectionUsed(runContext);
-                    // for all alter statements
-                    for (final AlterStatement s : a.getStatements()) {
-                        //print to user
-                        runContext.report(STATEMENT, "%s", s);
-                        runContext.subreport("statement", new Runnable() {
-                            public void run() {
-                                s.recordStructuredInfo(runContext);
-                                if (!RunMode.PRINT.equals(getRunMode())) {
-                                    executeStatement(d, a, s);
-                                }
-                            }
-                        });
+                }
+            }
+            for (DbInstance d : workers) {
+                d.closeConnection();
+            }
+            //the workers have their own catalog snapshots: the catalog of the instance might have changed
+            for (DbInstance entry : db.getEntries()) {
+                synchronized (entry) {
+                    entry.invalidateCatalog();
+                }
+            }
+        }
+        if (results.size() == 1) {
+            ctx.reportProperty(ALTER, "result", results.iterator().next());
+        }
+    }
+
+    /**
+     * Pipelined mode: every instance works through all alterscripts on its own timeline, each alterscript
+     * is committed (or rolled back) on that instance only. Failures are handled the same way as in
+     * the standard mode: without "ignore failures", the first failure stops all instances (alterscripts in progress
+     * are rolled back); with it, the failure is collected and the rest of the alterscripts are rolled back
+     * on the failed instance.
+     */
+    private void applyPipelined(final Collection<Alter> alters, final ApplyAlterExceptions aae) {
+        final AtomicBoolean aborted = new AtomicBoolean();
+        db.forEachInstance(runContext, db.getEntries(), new ParallelExecutor.Worker<DbInstance>() {
+            public void run(final DbInstance d, final RunContext ctx) {
+                ctx.subreport("instance", new Runnable() {
+                    public void run() {
+                        ctx.reportProperty(ALTER, "id", d.getId());
+                        try {
+                            applyPipelined(alters, d, ctx, aae, aborted);
+                        } catch (RuntimeException e) {
+                            aborted.set(true);
+                            ctx.reportProperty(ALTER, "result", ReportedResult.FAILED);
+                            throw e;
+                        }
                     }
-                    long time = System.currentTimeMillis() - start;
-                    savelog(d, dbid, a.getId(), time, a.getHash());
+                });
+            }
+        });
+    }
 
-                    results.add(ReportedResult.FINISHED);
-                } catch (ApplyAlterException e) {
-                    //hack: report FAILED now, it can be overwritten later if the exception is ignored!
-                    runContext.reportProperty(ALTER, "result", ReportedResult.FAILED);
-                    //now either re-throw exception or report it
-                    aae.addOrThrow(e);
-                    results.add(ReportedResult.FAILED_IGNORED);
+    private void applyPipelined(Collection<Alter> alters, final DbInstance d, final RunContext ctx,
+                                final ApplyAlterExceptions aae, AtomicBoolean aborted) {
+        final Set<ReportedResult> results = EnumSet.noneOf(ReportedResult.class);
+        for (final Alter a : alters) {
+            if (aborted.get()) {
+                ctx.report(ALTER, "execution aborted by failure on another instance");
+                results.add(ReportedResult.SKIPPED);
+                break;
+            }
+            ctx.subreport("alterscript", new Runnable() {
+                public void run() {
+                    final boolean failedBefore = results.contains(ReportedResult.FAILED_IGNORED);
+                    final ReportedResult result = applyPipelinedAlter(a, d, ctx, aae, !failedBefore);
+                    if (result != null) {
+                        results.add(result);
+                    }
                 }
+            });
+        }
+        if (results.contains(ReportedResult.FAILED_IGNORED)) {
+            ctx.reportProperty(ALTER, "result", ReportedResult.FAILED_IGNORED);
+        } else if (aborted.get()) {
+            ctx.reportProperty(ALTER, "result", ReportedResult.SKIPPED);
+        } else {
+            ctx.reportProperty(ALTER, "result", ReportedResult.FINISHED);
+        }
+    }
+
+    /**
+     * Apply single alterscript to single instance and commit it (pipelined mode).
+     *
+     * @param commitAllowed false when this instance has already failed: everything is then rolled back,
+     *                      exactly like in the standard mode
+     */
+    @Nullable
+    private ReportedResult applyPipelinedAlter(Alter a, DbInstance d, RunContext ctx, ApplyAlterExceptions aae,
+                                               boolean commitAllowed) {
+        if (skipAutocommitInDryRun(a, ctx)) {
+            return ReportedResult.SKIPPED;
+        }
+        ctx.reportProperty(ALTER, "id", a.getId());
+        ctx.reportProperty(ALTER, "hash", a.getHash());
+
+        d.setAutoCommit(a.autocommit);
+        ReportedResult result = null;
+        boolean failed = true;
+        try {
+            result = applySingleAlter(a, d, ctx, aae);
+            failed = false;
+        } finally {
+            //failed: the alterscript has thrown exception, it must be rolled back
+            if (!a.autocommit && d.isUsed()) {
+                final boolean commit = commitAllowed && !failed && result != ReportedResult.FAILED_IGNORED
+                        && RunMode.SHARP.equals(ctx.getRunMode());
+                endTransaction(ctx, d, commit);
             }
+            d.setAutoCommit(DbConfig.AUTOCOMMIT_OFF);
         }
-        if (!a.autocommit) {
-            // commit each alter on used databases
-            if (aae.isEmpty() && RunMode.SHARP.equals(getRunMode())) {
-                db.commitUsed(runContext);
+        if (result != null) {
+            ctx.reportProperty(ALTER, "result", result);
+        }
+        return result;
+    }
+
+    private void endTransaction(RunContext ctx, DbInstance d, boolean commit) {
+        try {
+            ctx.reportProperty(ALTER, "transaction", commit ? "COMMIT" : "ROLLBACK");
+            if (commit) {
+                d.getConnection(ctx).commit();
             } else {
-                db.rollbackUsed(runContext);
+                d.getConnection(ctx).rollback();
             }
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Error committing", e);
         }
-        //structured report: pick one status - in most cases, there is only one result anyway
-        if (results.size() == 1) {
-            runContext.reportProperty(ALTER, "result", results.iterator().next());
+    }
+
+    /**
+     * Apply single alterscript to single database instance, without commit.
+     * This method might be called from several threads at once (for different instances), so it must use only
+     * the provided run context.
+     *
+     * @param a   the alterscript
+     * @param d   database instance
+     * @param ctx run context of this instance
+     * @param aae collected failures
+     * @return result to report; null when nothing is to be reported (alterscript already applied, etc)
+     */
+    @Nullable
+    private ReportedResult applySingleAlter(final Alter a, final DbInstance d, final RunContext ctx,
+                                            ApplyAlterExceptions aae) {
+        //check engine
+        if (a.engine != null && !a.engine.equalsIgnoreCase(d.getEngine())) {
+            //skip
+            ctx.report(ALTER, "alterscript is only for %s, database is %s, skipping", a.engine, d.getEngine());
+            return ReportedResult.SKIPPED;
+        }
+
+        if (a.environment != null && !a.environment.contains(getEnvironment())) {
+            //skip
+            ctx.report(ALTER, "alterscript is for environment %s, database is %s, skipping",
+                    a.environment, getEnvironment());
+            return ReportedResult.SKIPPED;
+        }
+
+        // apply to this instance?
+        if (!a.isAllInstances() && !a.getInstance().contains(d.getType())) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        String dbid = d.getId();
+        try {
+            Connection c = d.getConnection(ctx);
+            ctx.report(DETAIL, "Database instance %s %s, schema %s", dbid, d.getUrl(), a.getSchema());
+            d.prepareSession(a.getSchema(), a.getIsolation());
+
+            // do checks
+            if (executeChecks(ctx, a, d, c)) {
+                //alter already applied
+                ctx.report(ALTER, "Alter already applied, skipping");
+                return null;
+            }
+
+            if (RunMode.LOOK.equals(ctx.getRunMode())) {
+                ctx.report(MAIN, "Alter %s seems unapplied", a.getId());
+                unapplied.put(d.getId(), a.getId());
+                return null;
+            }
+            d.markConnectionUsed(ctx);
+            // for all alter statements
+            for (final AlterStatement s : a.getStatements()) {
+                //print to user
+                ctx.report(STATEMENT, "%s", s);
+                ctx.subreport("statement", new Runnable() {
+                    public void run() {
+                        s.recordStructuredInfo(ctx);
+                        if (!RunMode.PRINT.equals(ctx.getRunMode())) {
+                            executeStatement(ctx, d, a, s);
+                        }
+                    }
+                });
+            }
+            long time = System.currentTimeMillis() - start;
+            savelog(ctx, d, dbid, a.getId(), time, a.getHash());
+
+            return ReportedResult.FINISHED;
+        } catch (ApplyAlterException e) {
+            //hack: report FAILED now, it can be overwritten later if the exception is ignored!
+            ctx.reportProperty(ALTER, "result", ReportedResult.FAILED);
+            //now either re-throw exception or report it
+            aae.addOrThrow(e);
+            return ReportedResult.FAILED_IGNORED;
         }
-        db.resetDbAutocommit();
     }
 
     /**
      * Execute statement and handle errors (ignore if configured so).
      *
+     * @param runContext run context
      * @param db database instance
      * @param a  the alterscript
      * @param s  statement  @throws ApplyAlterException statement failed and the error is not configured to be ignored
      */
-    private void executeStatement(DbInstance db, Alter a, AlterStatement s)
+    private void executeStatement(RunContext runContext, DbInstance db, Alter a, AlterStatement s)
             throws ApplyAlterException {
         Savepoint savepoint = null;
         if (db.isSavepointNeededForIgnoredFailure() && !a.autocommit &&
@@ -642,14 +1119,18 @@ public class ApplyAlter {
                 result = ReportedResult.FAILED;
             }
             runContext.reportProperty(STATEMENT, "result", result);
+            if (CatalogSnapshot.mayChangeCatalog(s)) {
+                db.invalidateCatalog();
+            }
+            db.getCheckokCache().invalidate(s);
         }
     }
 
-    protected boolean executeChecks(Alter alter, DbInstance d, Connection connection) {
-        if (checkInc(alter, d, connection)) {
+    protected boolean executeChecks(RunContext ctx, Alter alter, DbInstance d, Connection connection) {
+        if (checkInc(ctx, alter, d, connection)) {
             return true;
         }
-        if (check(connection, alter.getCheckok())) {
+        if (checkok(ctx, d, connection, alter)) {
             //checkOK is sufficient
             return true;
         }
@@ -660,7 +1141,7 @@ public class ApplyAlter {
             return false;
         }
         for (Check i : checks) {
-            if (!check(d, connection, i, alter.getSchema())) {
+            if (!check(ctx, d, connection, i, alter.getSchema())) {
                 return false;
             }
         }
@@ -673,44 +1154,28 @@ public class ApplyAlter {
      * @return true = this script has already been executed, skip it; <br />
      * false = execute it
      */
-    boolean checkInc(Alter alter, DbInstance d, Connection c) {
+    boolean checkInc(RunContext runContext, Alter alter, DbInstance d, Connection c) {
         if (!runContext.isIncremental()) {
             // continue with checks
             return false;
         }
+        final LogStateCache logState = d.getLogState();
+        if (logState.isPrefetched(alter.getId())) {
+            return checkLogRecord(runContext, alter, logState.get(alter.getId()));
+        }
         PreparedStatement s = null;
         try {
-            s = c.prepareStatement("select hash,AT from " + d.getLogTable() + " where id = ? order by AT desc");
+            s = c.prepareStatement("select hash,AT from " + getStateTable(d) + " where id = ? order by AT desc");
             s.setString(1, alter.getId());
             s.setMaxRows(1);
             s.execute();
             ResultSet rs = s.getResultSet();
             //read only one hash (the last one)
+            LogStateCache.Entry entry = null;
             if (rs.next()) {
-                String hash = rs.getString(1);
-                Timestamp at = rs.getTimestamp(2);
-                if (hash == null || !hash.equals(alter.getHash())) {
-                    runContext.report(ReportLevel.ALTER, String.format(
-                            "script id: %s changed since: %s (%s to %s)",
-                            alter.getId(), at.toString(), hash, alter.getHash()
-                    ));
-                    //this script has been already executed, but with different hash!
-                    if (alter.synchronization) {
-                        // synchronization script: it is supposed to change
-                        //  no error, but the script is executed
-                        return false;
-                    }
-                    //normal script: it should not change!
-                    // log error and skip this script
-                    runContext.report(ReportLevel.ALTER, "hash doesn't match! " + hash + " is in DB for id: " + alter.getId()
-                            + " while script hash is: " + alter.getHash());
-                }
-                // the only case to skip script if option is set, sync is not set and result set is not empty
-                runContext
-                        .report(ReportLevel.ALTER, "skipping script id: " + alter.getId() + " script hash: " + alter.getHash());
-                return true;
+                entry = new LogStateCache.Entry(rs.getString(1), rs.getTimestamp(2));
             }
-            runContext.report(ReportLevel.ALTER, "The first try script id: " + alter.getId());
+            return checkLogRecord(runContext, alter, entry);
         } catch (SQLException e) {
             runContext.report(ReportLevel.ERROR, "failed to select applyalter_log record: %s", e.getMessage());
         } finally {
@@ -721,14 +1186,178 @@ public class ApplyAlter {
     }
 
     /**
-     * Logs successful alter to stdout and applyalter_log table
+     * Decide by the last log record of alterscript (incremental mode).
      *
+     * @param entry the last log record, null if there is none
+     * @return true = skip the script
+     */
+    private boolean checkLogRecord(RunContext runContext, Alter alter, @Nullable LogStateCache.Entry entry) {
+        if (entry == null) {
+            runContext.report(ReportLevel.ALTER, "The first try script id: " + alter.getId());
+            // continue with checks
+            return false;
+        }
+        String hash = entry.getHash();
+        Timestamp at = entry.getAt();
+        if (hash == null || !hash.equals(alter.getHash())) {
+            runContext.report(ReportLevel.ALTER, String.format(
+                    "script id: %s changed since: %s (%s to %s)",
+                    alter.getId(), at.toString(), hash, alter.getHash()
+            ));
+            //this script has been already executed, but with different hash!
+            if (alter.synchronization) {
+                // synchronization script: it is supposed to change
+                //  no error, but the script is executed
+                return false;
+            }
+            //normal script: it should not change!
+            // log error and skip this script
+            runContext.report(ReportLevel.ALTER, "hash doesn't match! " + hash + " is in DB for id: " + alter.getId()
+                    + " while script hash is: " + alter.getHash());
+        }
+        // the only case to skip script if option is set, sync is not set and result set is not empty
+        runContext
+                .report(ReportLevel.ALTER, "skipping script id: " + alter.getId() + " script hash: " + alter.getHash());
+        return true;
+    }
+
+    /**
+     * Incremental mode: read the latest log records of all alterscripts at once (a few chunked queries
+     * per database instance), so that {@link #checkInc(RunContext, Alter, DbInstance, Connection)} does not have
+     * to query the log table for every alterscript. When the prefetch fails, every alterscript is checked
+     * by its own query, as before.
+     *
+     * @param alters alterscripts to apply
+     */
+    protected void prefetchLogState(Collection<Alter> alters) {
+        if (!runContext.isIncremental() || alters.isEmpty()) {
+            return;
+        }
+        final List<String> ids = new ArrayList<String>(alters.size());
+        for (Alter a : alters) {
+            ids.add(a.getId());
+        }
+        db.forEachInstance(runContext, db.getEntries(), new ParallelExecutor.Worker<DbInstance>() {
+            public void run(DbInstance d, RunContext ctx) {
+                final LogStateCache logState = d.getLogState();
+                logState.clear();
+                final Connection c = d.getConnection(ctx);
+                try {
+                    final int found = logState.prefetch(c, getStateTable(d), ids);
+                    ctx.report(DETAIL, "Database instance %s: %d of %d alterscripts found in %s",
+                            d.getId(), found, ids.size(), getStateTable(d));
+                } catch (SQLException e) {
+                    ctx.report(ERROR, "failed to prefetch applyalter_log records: %s", e.getMessage());
+                } finally {
+                    //read only: do not leave the transaction open (isolation is set later)
+                    try {
+                        c.rollback();
+                    } catch (SQLException e) {
+                        //ignore
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Evaluate checkok queries of all alterscripts at once: a few UNION ALL queries per database instance and
+     * schema (see {@link CheckokCache}). Skipped are alterscripts not targeted to the instance, alterscripts with
+     * {@link Alter#isRecheck()} and (in incremental mode) alterscripts already decided by the log.
+     *
+     * @param alters alterscripts to apply
+     */
+    protected void prefetchCheckok(final Collection<Alter> alters) {
+        db.forEachInstance(runContext, db.getEntries(), new ParallelExecutor.Worker<DbInstance>() {
+            public void run(DbInstance d, RunContext ctx) {
+                final CheckokCache cache = d.getCheckokCache();
+                cache.clear();
+                //alterscripts by schema, in the original order
+                final Map<String, List<Alter>> bySchema = new LinkedHashMap<String, List<Alter>>();
+                int count = 0;
+                for (Alter a : alters) {
+                    if (isCheckokPrefetched(ctx, a, d)) {
+                        List<Alter> list = bySchema.get(a.getSchema());
+                        if (list == null) {
+                            list = new ArrayList<Alter>();
+                            bySchema.put(a.getSchema(), list);
+                        }
+                        list.add(a);
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    return;
+                }
+                final Connection c = d.getConnection(ctx);
+                int cached = 0;
+                try {
+                    for (Map.Entry<String, List<Alter>> e : bySchema.entrySet()) {
+                        d.setSchema(e.getKey());
+                        cached += cache.prefetch(ctx, d, e.getKey(), e.getValue());
+                    }
+                    ctx.report(DETAIL, "Database instance %s: %d of %d checkok queries prefetched",
+                            d.getId(), cached, count);
+                } catch (ApplyAlterException e) {
+                    ctx.report(ERROR, "failed to prefetch checkok queries: %s", e.getMessage());
+                } finally {
+                    //read only: do not leave the transaction open (isolation is set later)
+                    try {
+                        c.rollback();
+                    } catch (SQLException e) {
+                        //ignore
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Should checkok of the alterscript be prefetched for the database instance?
+     */
+    private boolean isCheckokPrefetched(RunContext ctx, Alter a, DbInstance d) {
+        if (a.getCheckok() == null || "".equals(a.getCheckok().trim()) || a.isRecheck()) {
+            return false;
+        }
+        if ((a.engine != null && !a.engine.equalsIgnoreCase(d.getEngine()))
+                || (a.environment != null && !a.environment.contains(getEnvironment()))
+                || (!a.isAllInstances() && !a.getInstance().contains(d.getType()))) {
+            //not applied to this instance
+            return false;
+        }
+        if (ctx.isIncremental()) {
+            final LogStateCache logState = d.getLogState();
+            if (logState.isPrefetched(a.getId())) {
+                final LogStateCache.Entry entry = logState.get(a.getId());
+                //see checkLogRecord: skipped without any check
+                if (entry != null && (a.getHash() != null && a.getHash().equals(entry.getHash())
+                        || !a.synchronization)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Table to read the latest state of alterscripts from: the compact applyalter_state, created and maintained
+     * together with the log table; when the log table is not used (and the internal scripts are not applied),
+     * the log table itself.
+     */
+    protected String getStateTable(DbInstance d) {
+        return isLogTableUsed() ? d.getStateTable() : d.getLogTable();
+    }
+
+    /**
+     * Logs successful alter to stdout and applyalter_log table (and applyalter_state, in the same transaction)
+     *
+     * @param runContext run context
      * @param d    database instance
      * @param dbid database id
      * @param id   alter id
      * @param time alter duration
      */
-    protected void savelog(DbInstance d, String dbid, String id, long time, String hash) {
+    protected void savelog(RunContext runContext, DbInstance d, String dbid, String id, long time, String hash) {
         Connection c = d.getConnection(runContext);
         runContext.report(ALTER, "Alter %s on %s took %s ms", id, dbid, time);
 
@@ -745,15 +1374,35 @@ public class ApplyAlter {
             s.setLong(3, time);
             s.setString(4, hash);
             s.executeUpdate();
+            d.getLogState().invalidate(id);
         } catch (SQLException e) {
             runContext.report(ReportLevel.ERROR, "failed to insert applyalter_log record: %s", e.getMessage());
+            return;
         } finally {
             DbUtils.close(s);
         }
+        savestate(runContext, d, id, time, hash);
+    }
+
+    /**
+     * Update applyalter_state record (update or insert).
+     */
+    private void savestate(RunContext runContext, DbInstance d, String id, long time, String hash) {
+        final Connection c = d.getConnection(runContext);
+        try {
+            final int updated = DbUtils.executeUpdate(c, "update " + d.getStateTable()
+                    + " set hash = ?, at = CURRENT_TIMESTAMP, duration = ? where id = ?", hash, time, id);
+            if (updated == 0) {
+                DbUtils.executeUpdate(c, "insert into " + d.getStateTable()
+                        + " (id,hash,at,duration) values (?,?,CURRENT_TIMESTAMP,?)", id, hash, time);
+            }
+        } catch (SQLException e) {
+            runContext.report(ReportLevel.ERROR, "failed to save applyalter_state record: %s", e.getMessage());
+        }
     }
 
     /**
-     * Get ids of applied alters read from log table
+     * Get ids of applied alters read from state table (see {@link #getStateTable(DbInstance)})
      *
      * @param d database instance connection
      * @return id of alters applied in this database instance connection
@@ -765,7 +1414,7 @@ public class ApplyAlter {
         PreparedStatement s = null;
         ResultSet r = null;
         try {
-            s = c.prepareStatement("select distinct id from " + d.getLogTable());
+            s = c.prepareStatement("select distinct id from " + getStateTable(d));
             r = s.executeQuery();
             while (r.next()) {
                 result.add(r.getString(1));
@@ -825,6 +1474,15 @@ public class ApplyAlter {
 
         o.addOption(null, QUERY_PKG, true, "query the APPLYALTER_PKG table and write result to file");
         o.addOption(null, QUERY_PKG_HASH, true, "limit output of --" + QUERY_PKG + " by specified SHA1 hash");
+        o.addOption(null, PARALLEL, true, "process up to N database instances concurrently (default 1)");
+        o.addOption(null, PIPELINE, false, "every database instance processes all alterscripts on its own, "
+                + "without waiting for other instances");
+        o.addOption(null, ANALYZE, false, "analyze tables touched by alterscripts and run non-conflicting "
+                + "alterscripts concurrently (with --" + PARALLEL + ")");
+        o.addOption(null, STREAM, false, "load alterscripts in background and apply them as soon as they are loaded, "
+                + "without keeping them in memory");
+        o.addOption(null, SKIP_APPLIED_PKG, false, "do nothing if the package (zip bundle) has been already applied "
+                + "to all database instances (according to the APPLYALTER_PKG table)");
 
         boolean ignfail = false;
         boolean printstacktrace = false;
@@ -832,6 +1490,7 @@ public class ApplyAlter {
         String username;
         final boolean isIncrimental;
         RunMode rnmd = RunMode.SHARP;
+        int parallelism = 1;
 
         final String configFile;
         final String[] param;
@@ -876,6 +1535,17 @@ public class ApplyAlter {
                         + ", available ones: " + Arrays.toString(ReportLevel.values()));
             }
 
+            try {
+                if (cmd.hasOption(PARALLEL)) {
+                    parallelism = Integer.parseInt(cmd.getOptionValue(PARALLEL));
+                }
+            } catch (NumberFormatException ignored) {
+                throw new MissingArgumentException("invalid value for --" + PARALLEL + ", positive number expected");
+            }
+            if (parallelism < 1) {
+                throw new MissingArgumentException("invalid value for --" + PARALLEL + ", positive number expected");
+            }
+
 
             String[] a = cmd.getArgs();
             if (a.length < 1) {
@@ -907,6 +1577,10 @@ public class ApplyAlter {
             rctx.report(MAIN, "run mode: %s", rnmd);
             rctx.report(MAIN, "ignore failures: %s", ignfail);
             rctx.report(MAIN, "print stacktrace: %s", printstacktrace);
+            rctx.report(MAIN, "parallel instances: %d", parallelism);
+            rctx.report(MAIN, "pipelined instances: %s", cmd.hasOption(PIPELINE));
+            rctx.report(MAIN, "footprint analysis: %s", cmd.hasOption(ANALYZE));
+            rctx.report(MAIN, "streaming: %s", cmd.hasOption(STREAM));
             rctx.report(MAIN, "incremental mode: %s",
                     isIncrimental ? "enabled (synchronize)" : "disabled (repeated execution)"
             );
@@ -935,20 +1609,33 @@ public class ApplyAlter {
 
             ApplyAlter applyAlter = new ApplyAlter(configFile, rctx, ignfail, username, validateXml, useLogTable, env);
             applyAlter.setUnknownInstancesIgnored(cmd.hasOption(IGNORE_UNKNOWN_INSTANCES));
-
-            applyAlter.applyInternal();
-            final Alters alters = applyAlter.apply(validateXml, param);
-            if (RunMode.LOOK.equals(rnmd)) {
-                rctx.report(MAIN, "Unapplied alters: \n%s", applyAlter.getUnappliedAlters());
+            applyAlter.setParallelism(parallelism);
+            applyAlter.setPipelined(cmd.hasOption(PIPELINE));
+            applyAlter.setFootprintAnalyzed(cmd.hasOption(ANALYZE));
+            applyAlter.setStreamed(cmd.hasOption(STREAM));
+
+            String packageHash = cmd.hasOption(SKIP_APPLIED_PKG) ? applyAlter.findAppliedPackage(param) : null;
+            if (packageHash != null) {
+                rctx.report(MAIN, "package %s has been already applied to all database instances, nothing to do",
+                        packageHash);
+            } else {
+                applyAlter.applyInternal();
+                final Alters alters = applyAlter.apply(validateXml, param);
+                if (RunMode.LOOK.equals(rnmd)) {
+                    rctx.report(MAIN, "Unapplied alters: \n%s", applyAlter.getUnappliedAlters());
+                }
+                if (alters.getCount() > 0) {
+                    packageHash = alters.getSourceHash();
+                }
             }
 
             //queries
             final String queryPkgFile = cmd.getOptionValue(QUERY_PKG);
             if (queryPkgFile != null && applyAlter.pkgLogTable != null) {
                 String queryPkgHash = cmd.getOptionValue(QUERY_PKG_HASH);
-                if (queryPkgHash == null && alters.getAlters().size() > 0) {
+                if (queryPkgHash == null) {
                     //--query-pkg-hash not present, but there are some alterscripts --> use their hash
-                    queryPkgHash = alters.getSourceHash();
+                    queryPkgHash = packageHash;
                 }
                 applyAlter.pkgLogTable.queryAndWrite(queryPkgFile, queryPkgHash);
             }
@@ -5,7 +5,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * List of {@link ApplyAlterException}s
+ * List of {@link ApplyAlterException}s. Exceptions can be collected from several threads at once.
  *
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
@@ -29,7 +29,7 @@ public class ApplyAlterExceptions extends ApplyAlterException {
      *
      * @param e exception
      */
-    public void add(ApplyAlterException e) {
+    public synchronized void add(ApplyAlterException e) {
         if (e instanceof ApplyAlterExceptions)
             this.ex.addAll(((ApplyAlterExceptions) e).ex);
         else
@@ -50,7 +50,7 @@ public class ApplyAlterExceptions extends ApplyAlterException {
     }
 
     @Override
-    public void printMessages(PrintStream out) {
+    public synchronized void printMessages(PrintStream out) {
         for (ApplyAlterException e : ex)
             e.printMessages(out);
     }
@@ -60,7 +60,7 @@ public class ApplyAlterExceptions extends ApplyAlterException {
      *
      * @return true if empty false otherwise
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return ex.isEmpty();
     }
 
@@ -0,0 +1,106 @@
+package ch.ips.g2.applyalter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Run context that only records everything reported, so it can be replayed into the real context later.
+ * Used by parallel workers: the real context (the structured log in particular) is not thread safe,
+ * so every worker gets its own buffer and the buffers are replayed one by one after the workers finish.
+ * <p/>
+ * Subreports are executed immediately (as required by {@link RunContext#subreport(String, Runnable)}),
+ * only their content is recorded.
+ */
+class BufferedRunContext implements RunContext {
+    private final RunMode runMode;
+    private final boolean incremental;
+    /**
+     * Stack of open subreports; the bottom one is the top level.
+     */
+    private final Deque<List<Entry>> stack = new ArrayDeque<List<Entry>>();
+
+    public BufferedRunContext(RunContext parent) {
+        this.runMode = parent.getRunMode();
+        this.incremental = parent.isIncremental();
+        stack.push(new ArrayList<Entry>());
+    }
+
+    public RunMode getRunMode() {
+        return runMode;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void report(final ReportLevel level, final String format, final Object... args) {
+        stack.peek().add(new Entry() {
+            public void replay(RunContext target) {
+                target.report(level, format, args);
+            }
+        });
+    }
+
+    public void report(final ReportLevel level, final Exception e, final String format, final Object... args) {
+        stack.peek().add(new Entry() {
+            public void replay(RunContext target) {
+                target.report(level, e, format, args);
+            }
+        });
+    }
+
+    public void reportProperty(final ReportLevel level, final String key, final Object value) {
+        stack.peek().add(new Entry() {
+            public void replay(RunContext target) {
+                target.reportProperty(level, key, value);
+            }
+        });
+    }
+
+    public void subreport(final String subreportName, Runnable run) {
+        final List<Entry> nested = new ArrayList<Entry>();
+        stack.peek().add(new Entry() {
+            public void replay(final RunContext target) {
+                target.subreport(subreportName, new Runnable() {
+                    public void run() {
+                        replayAll(nested, target);
+                    }
+                });
+            }
+        });
+        stack.push(nested);
+        try {
+            run.run();
+        } finally {
+            stack.pop();
+        }
+    }
+
+    /**
+     * Replay everything recorded so far into the target context and forget it.
+     *
+     * @param target the real context
+     */
+    public void replay(RunContext target) {
+        final List<Entry> entries = stack.getLast();
+        replayAll(entries, target);
+        entries.clear();
+    }
+
+    private static void replayAll(List<Entry> entries, RunContext target) {
+        for (Entry entry : entries) {
+            entry.replay(target);
+        }
+    }
+
+    public void close() throws IOException {
+        //nothing to close, the parent context is closed by its owner
+    }
+
+    private interface Entry {
+        void replay(RunContext target);
+    }
+}
@@ -0,0 +1,112 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Catalog snapshot of one database instance: names of database objects, loaded in bulk (one query per schema and
+ * {@link CheckType}) when first needed, so that {@link Check}s are evaluated in memory.
+ * <p/>
+ * Names are uppercase; objects which belong to a table (column, trigger, constraint) are qualified
+ * by the table name, see {@link #key(String, String)}. The snapshot is dropped whenever a statement which might
+ * change the catalog is executed, see {@link #mayChangeCatalog(AlterStatement)}.
+ * <p/>
+ * Not thread safe: every worker of the database instance has its own snapshot.
+ */
+class CatalogSnapshot {
+    /**
+     * First keywords of statements that might change the catalog.
+     */
+    private static final Set<String> DDL_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "CREATE", "ALTER", "DROP", "RENAME", "DECLARE", "CALL", "DO", "EXECUTE", "BEGIN", "IMPORT", "LOAD"
+    ));
+
+    private final Map<String, Set<String>> segments = new HashMap<String, Set<String>>();
+
+    /**
+     * Are the names of this type qualified by table name?
+     */
+    public static boolean isQualified(CheckType type) {
+        return type.getExtra() != null;
+    }
+
+    /**
+     * Key of a catalog object.
+     *
+     * @param table table name, used only for {@link #isQualified(CheckType) qualified} types
+     * @param name  object name
+     */
+    public static String key(@Nullable String table, String name) {
+        if (table == null) {
+            return name.toUpperCase();
+        }
+        return table.toUpperCase() + "." + name.toUpperCase();
+    }
+
+    private static String segment(String schema, CheckType type, @Nullable String table) {
+        final StringBuilder b = new StringBuilder(schema.toUpperCase()).append(' ').append(type.name());
+        if (table != null) {
+            b.append(' ').append(table.toUpperCase());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Loaded names.
+     *
+     * @param schema schema
+     * @param type   object type
+     * @param table  table, only when the objects are loaded per table (see {@link DbInstance#isCatalogLoadedPerTable})
+     * @return keys of all objects, null if not loaded yet
+     */
+    @Nullable
+    public Set<String> get(String schema, CheckType type, @Nullable String table) {
+        return segments.get(segment(schema, type, table));
+    }
+
+    public void put(String schema, CheckType type, @Nullable String table, Set<String> keys) {
+        segments.put(segment(schema, type, table), keys);
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public void clear() {
+        segments.clear();
+    }
+
+    /**
+     * Might the statement change the catalog? Statements which can't be analyzed are considered as changes;
+     * statement writing some table is a change if any of its commands starts with DDL keyword (CREATE, ALTER,
+     * DROP...).
+     */
+    public static boolean mayChangeCatalog(AlterStatement s) {
+        final TableFootprint footprint = s.getTableFootprint();
+        if (!footprint.isKnown()) {
+            return true;
+        }
+        final String sql = s.getStatement();
+        if (sql == null || footprint.getWrites().isEmpty()) {
+            //note: comments, queries
+            return false;
+        }
+        final List<String> tokens = TableFootprint.tokenize(sql);
+        if (tokens == null) {
+            return true;
+        }
+        boolean first = true;
+        for (String t : tokens) {
+            if (first && DDL_KEYWORDS.contains(t)) {
+                return true;
+            }
+            first = ";".equals(t) || (first && "(".equals(t));
+        }
+        return false;
+    }
+}
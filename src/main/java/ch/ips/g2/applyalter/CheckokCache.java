@@ -0,0 +1,164 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of {@link Alter#getCheckok() checkok} queries of one database instance, evaluated in bulk before
+ * the alterscripts are applied: checkok queries of many alterscripts are joined by UNION ALL, each one tagged
+ * by its position.
+ * <p/>
+ * A result is valid until a statement writing any table read by the checkok query is executed; statements that
+ * might change the catalog or can't be analyzed (including calls of functions) drop all results. Only plain reads
+ * keep them all.
+ * <p/>
+ * The cache is shared by all workers of the database instance (see {@link DbInstance#createWorker()}),
+ * so it is thread safe.
+ */
+class CheckokCache {
+    /**
+     * Maximum number of checkok queries in one query.
+     */
+    public static final int CHUNK_SIZE = 100;
+
+    private static class Entry {
+        final String sql;
+        final boolean ok;
+        final TableFootprint footprint;
+
+        Entry(String sql, boolean ok) {
+            this.sql = sql;
+            this.ok = ok;
+            this.footprint = TableFootprint.analyze(sql);
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Evaluate checkok queries of all specified alterscripts, in chunks of {@link #CHUNK_SIZE}. When a chunk fails
+     * (for example, because the queries return different number of columns), it is split in halves; queries that
+     * can't be joined at all are not cached.
+     * <p/>
+     * The connection must be in the schema of the alterscripts. Transaction is rolled back after a failure,
+     * the schema is then set again.
+     *
+     * @param ctx    run context
+     * @param d      database instance
+     * @param schema schema of all the alterscripts
+     * @param alters alterscripts with checkok
+     * @return number of cached results
+     */
+    public int prefetch(RunContext ctx, DbInstance d, String schema, List<Alter> alters) {
+        int cached = 0;
+        for (int from = 0; from < alters.size(); from += CHUNK_SIZE) {
+            cached += prefetchChunk(ctx, d, schema, alters.subList(from, Math.min(alters.size(), from + CHUNK_SIZE)));
+        }
+        return cached;
+    }
+
+    private int prefetchChunk(RunContext ctx, DbInstance d, String schema, List<Alter> chunk) {
+        final Connection c = d.getConnection(ctx);
+        try {
+            final Map<String, Entry> results = evaluate(d, c, chunk);
+            synchronized (this) {
+                entries.putAll(results);
+            }
+            return results.size();
+        } catch (SQLException e) {
+            try {
+                c.rollback();
+            } catch (SQLException e1) {
+                //ignore
+            }
+            d.setSchema(schema);
+            if (chunk.size() == 1) {
+                ctx.report(ReportLevel.DETAIL, "checkok of %s can't be prefetched: %s",
+                        chunk.get(0).getId(), e.getMessage());
+                return 0;
+            }
+            final int half = chunk.size() / 2;
+            return prefetchChunk(ctx, d, schema, chunk.subList(0, half))
+                    + prefetchChunk(ctx, d, schema, chunk.subList(half, chunk.size()));
+        }
+    }
+
+    private Map<String, Entry> evaluate(DbInstance d, Connection c, List<Alter> chunk) throws SQLException {
+        final StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i > 0) {
+                sql.append(" union all ");
+            }
+            sql.append('(').append(d.makeFirstRowSql(String.format("select %d as applyalter_tag, q.* from (%s) q",
+                    i, chunk.get(i).getCheckok().trim()))).append(')');
+        }
+
+        final boolean[] ok = new boolean[chunk.size()];
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = c.prepareStatement(sql.toString());
+            rs = st.executeQuery();
+            while (rs.next()) {
+                ok[rs.getInt(1)] = ApplyAlter.CHECK_OK.equalsIgnoreCase(rs.getString(2));
+            }
+        } finally {
+            DbUtils.close(st, rs);
+        }
+
+        final Map<String, Entry> results = new HashMap<String, Entry>();
+        for (int i = 0; i < chunk.size(); i++) {
+            results.put(chunk.get(i).getId(), new Entry(chunk.get(i).getCheckok(), ok[i]));
+        }
+        return results;
+    }
+
+    /**
+     * Prefetched result.
+     *
+     * @param alter alterscript
+     * @return result of the checkok query; null if not prefetched (or no longer valid)
+     */
+    @Nullable
+    public synchronized Boolean get(Alter alter) {
+        final Entry entry = entries.get(alter.getId());
+        if (entry == null || !entry.sql.equals(alter.getCheckok())) {
+            return null;
+        }
+        return entry.ok;
+    }
+
+    /**
+     * Statement has been executed: forget the results it might have changed.
+     */
+    public synchronized void invalidate(AlterStatement s) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final TableFootprint footprint = s.getTableFootprint();
+        if (!footprint.isKnown() || CatalogSnapshot.mayChangeCatalog(s)) {
+            entries.clear();
+            return;
+        }
+        if (footprint.getWrites().isEmpty()) {
+            //plain read
+            return;
+        }
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            if (i.next().footprint.conflictsWith(footprint)) {
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
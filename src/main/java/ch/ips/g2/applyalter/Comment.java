@@ -26,4 +26,9 @@ public class Comment extends AbstractStatement {
             throws ApplyAlterException {
         //do nothing
     }
+
+    @Override
+    public TableFootprint getTableFootprint() {
+        return TableFootprint.NONE;
+    }
 }
@@ -6,6 +6,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Standard db2 instance.
@@ -61,59 +64,84 @@ public class Db2Instance extends DbInstance {
 
     //--------------------------------------------------------------------------------------------------
 
-    protected String makeCheckSql(CheckType cht) {
-        String sql = String.format("select * from syscat.%s where %sschema=? and %sname=?",
-                cht.getTbl(), cht.getAbbr(), cht.getAbbr());
+    /**
+     * Select names of all objects of given type in the schema: first column is the name (table name for
+     * qualified types), second one (qualified types only) the object name.
+     */
+    protected String makeCatalogSql(CheckType cht) {
+        String sql = String.format("select %sname", cht.getAbbr());
         if (cht.getExtra() != null)
-            sql += String.format(" and %s=?", cht.getExtra());
+            sql += String.format(", %s", cht.getExtra());
+        sql += String.format(" from syscat.%s where %sschema=?", cht.getTbl(), cht.getAbbr());
         return sql;
     }
 
     /**
-     * Check if object exists in database, which means an alter was applied already.
-     *
-     * @param runContext
-     * @param c          Connection to database
-     * @param a          check object @return true if object exists in database @throws ApplyAlterException
+     * Syscat views list objects of the whole schema, including indexes.
+     */
+    @Override
+    protected boolean isCatalogLoadedPerTable(CheckType type) {
+        return false;
+    }
+
+    /**
+     * Load objects from syscat views: one query for the schema.
      */
     @Override
-    public boolean check(RunContext runContext, Connection c, Check a, String schema)
+    protected void loadCatalog(RunContext runContext, Connection c, String schema, CheckType type,
+                               String table, Set<String> keys)
             throws SQLException {
         PreparedStatement s = null;
         ResultSet rs = null;
         try {
-            final String sql = makeCheckSql(a.getType());
-            StringBuilder buf = new StringBuilder();
-            buf.append("Check: ").append(sql).append(" (");
-
-            s = c.prepareStatement(sql);
-            int i = 1;
+            final String sql = makeCatalogSql(type);
             schema = schema.toUpperCase();
-            s.setString(i++, schema);
-            buf.append(schema).append(' ');
-            if (a.table != null) {
-                String table = a.getTable().toUpperCase();
-                buf.append(table).append(' ');
-                s.setString(i++, table);
-            }
-            String name = a.getName().toUpperCase();
-            buf.append(name);
-            s.setString(i++, name);
-            buf.append(")");
-
-            runContext.report(ReportLevel.STATEMENT_STEP, "%s", buf);
+            runContext.report(ReportLevel.STATEMENT_STEP, "Loading catalog: %s (%s)", sql, schema);
 
+            s = c.prepareStatement(sql);
+            s.setString(1, schema);
             rs = s.executeQuery();
-            boolean rawResult = rs.next();
-
-            //XOR with the "isInverted" flag
-            return rawResult ^ a.isInverted();
-
+            while (rs.next()) {
+                if (CatalogSnapshot.isQualified(type)) {
+                    keys.add(CatalogSnapshot.key(rs.getString(1), rs.getString(2)));
+                } else {
+                    keys.add(CatalogSnapshot.key(null, rs.getString(1)));
+                }
+            }
         } finally {
             DbUtils.close(s, rs);
         }
     }
 
+    /**
+     * Quantiles from syscat.coldist (available after RUNSTATS WITH DISTRIBUTION).
+     */
+    @Override
+    public List<Long> loadKeyQuantiles(Connection con, String table, String column) throws SQLException {
+        final int dot = table.lastIndexOf('.');
+        final String sql = "select colvalue from syscat.coldist where tabschema = "
+                + (dot < 0 ? "current schema" : "?") + " and tabname = ? and colname = ? and type = 'Q' order by seqno";
+        final List<String> values = new ArrayList<String>();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement(sql);
+            int i = 1;
+            if (dot >= 0) {
+                st.setString(i++, table.substring(0, dot).toUpperCase());
+            }
+            st.setString(i++, table.substring(dot + 1).toUpperCase());
+            st.setString(i, column.toUpperCase());
+            rs = st.executeQuery();
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        } finally {
+            DbUtils.close(st, rs);
+        }
+        return parseQuantiles(values);
+    }
+
     @Override
     public String makeTemporaryTableName(String tableBaseName) {
         return "session." + tableBaseName;
@@ -123,4 +151,58 @@ public class Db2Instance extends DbInstance {
     public String makeCreateTemporaryTableAsSql(String tableName, String query) {
         return String.format(SQL_CREATE_TEMPORARY_TABLE, tableName, query);
     }
+
+    /**
+     * HADR log gap in bytes.
+     */
+    @Override
+    public String getReplicationLagSql() {
+        return "select coalesce(max(hadr_log_gap), 0) from table(mon_get_hadr(null)) as h";
+    }
+
+    @Override
+    public String getLockWaitSql() {
+        return "select count(*) from sysibmadm.mon_lockwaits";
+    }
+
+    @Override
+    public String getRowEstimateSql() {
+        return "select card from syscat.tables"
+                + " where tabschema = upper(coalesce(cast(? as varchar(128)), current schema)) and tabname = upper(?)";
+    }
+
+    @Override
+    public String getPartitionsSql() {
+        return "select cast(seqno as varchar(10)), datapartitionname from syscat.datapartitions"
+                + " where tabschema = upper(coalesce(cast(? as varchar(128)), current schema)) and tabname = upper(?)"
+                + " order by seqno";
+    }
+
+    /**
+     * Data partitions are addressed by <code>DATAPARTITIONNUM</code>.
+     */
+    @Override
+    public String makePartitionBoundsSql(String table, String partition, String idColumn) {
+        return String.format("select min(%1$s), max(%1$s) from %2$s where datapartitionnum(%1$s) = %3$s",
+                idColumn, table, partition);
+    }
+
+    @Override
+    public String makePartitionCondition(String partition, String idColumn) {
+        return String.format("datapartitionnum(%s) = %s", idColumn, partition);
+    }
+
+    /**
+     * Data partitions are not tables, the statement uses the partitioned table
+     * (restricted by {@link #makePartitionCondition}).
+     */
+    @Override
+    public String getPartitionTarget(String table, String partition) {
+        return table;
+    }
+
+    @Override
+    public boolean isTemporaryTableSupported() {
+        return true;
+    }
 }
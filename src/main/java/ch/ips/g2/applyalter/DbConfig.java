@@ -3,6 +3,7 @@ package ch.ips.g2.applyalter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -24,6 +25,10 @@ public class DbConfig {
     protected List<DbCustomParam> placeholders;
     public static final boolean AUTOCOMMIT_OFF = false;
     private boolean autocommit = AUTOCOMMIT_OFF;
+    /**
+     * Executor used to process database instances concurrently; by default, everything is serial.
+     */
+    private ParallelExecutor executor = new ParallelExecutor(1);
 
     /**
      * fail with first exception or collect them and report at one
@@ -67,6 +72,41 @@ public class DbConfig {
         return ignorefailures;
     }
 
+    /**
+     * Maximum number of database instances processed at once.
+     */
+    public int getParallelism() {
+        return executor.getParallelism();
+    }
+
+    /**
+     * Set maximum number of database instances processed at once; 1 means serial processing (default).
+     */
+    public void setParallelism(int parallelism) {
+        this.executor = new ParallelExecutor(parallelism);
+    }
+
+    /**
+     * Executor used to run things concurrently, limited by {@link #getParallelism()}.
+     */
+    ParallelExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Run the worker for every specified database instance, concurrently when {@link #getParallelism()} allows it.
+     *
+     * @param ctx       run context
+     * @param instances database instances to process
+     * @param worker    work to do
+     * @throws ApplyAlterException failure of any worker
+     * @see ParallelExecutor#forEach(RunContext, Collection, ParallelExecutor.Worker)
+     */
+    public void forEachInstance(RunContext ctx, Collection<DbInstance> instances,
+                                ParallelExecutor.Worker<DbInstance> worker) throws ApplyAlterException {
+        executor.forEach(ctx, instances, worker);
+    }
+
     /**
      * Close connections to all database instances
      */
@@ -97,23 +137,25 @@ public class DbConfig {
         commitRollbackUsed(ctx, false, "ROLLBACK");
     }
 
-    private void commitRollbackUsed(RunContext ctx, boolean commit, String transactionEnd) {
-        ApplyAlterExceptions aae = new ApplyAlterExceptions(ignorefailures);
-        for (DbInstance i : instances) {
-            if (i.isUsed())
-                try {
-                    ctx.reportProperty(ReportLevel.ALTER, "transaction", transactionEnd);
-                    Connection connection = i.getConnection(ctx);
-
-                    if (commit)
-                        connection.commit();
-                    else
-                        connection.rollback();
-
-                } catch (SQLException e) {
-                    aae.addOrThrow(new ApplyAlterException("Error committing", e));
-                }
-        }
+    private void commitRollbackUsed(RunContext ctx, final boolean commit, final String transactionEnd) {
+        final ApplyAlterExceptions aae = new ApplyAlterExceptions(ignorefailures);
+        forEachInstance(ctx, instances, new ParallelExecutor.Worker<DbInstance>() {
+            public void run(DbInstance i, RunContext ctx) {
+                if (i.isUsed())
+                    try {
+                        ctx.reportProperty(ReportLevel.ALTER, "transaction", transactionEnd);
+                        Connection connection = i.getConnection(ctx);
+
+                        if (commit)
+                            connection.commit();
+                        else
+                            connection.rollback();
+
+                    } catch (SQLException e) {
+                        aae.addOrThrow(new ApplyAlterException("Error committing", e));
+                    }
+            }
+        });
         if (!aae.isEmpty())
             throw aae;
     }
@@ -7,7 +7,12 @@ import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,7 +24,7 @@ import java.util.regex.Pattern;
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
  */
-public abstract class DbInstance {
+public abstract class DbInstance implements Cloneable {
 
     public String id;
     public String type;
@@ -36,6 +41,28 @@ public abstract class DbInstance {
     protected Connection con;
     @XStreamOmitField
     protected boolean used;
+    /**
+     * Prefetched log records (incremental mode), shared with workers.
+     */
+    @XStreamOmitField
+    private LogStateCache logState;
+    /**
+     * Catalog snapshot used by checks; every worker has its own.
+     */
+    @XStreamOmitField
+    private CatalogSnapshot catalog;
+    /**
+     * Prefetched checkok results, shared with workers.
+     */
+    @XStreamOmitField
+    private CheckokCache checkokCache;
+    /**
+     * Schema and isolation of the current alterscript, see {@link #prepareSession(String, IsolationLevel)}.
+     */
+    @XStreamOmitField
+    private String sessionSchema;
+    @XStreamOmitField
+    private IsolationLevel sessionIsolation;
 
 
     public DbInstance() {
@@ -135,6 +162,22 @@ public abstract class DbInstance {
         }
     }
 
+    /**
+     * Prepare connection for alterscript: set schema and isolation level. Both are remembered, so that
+     * {@link #createSessionWorker(RunContext)} can prepare another connection the same way.
+     * Connection must be open.
+     *
+     * @param schema    schema name to set
+     * @param isolation isolation level; null = do not change
+     * @throws ApplyAlterException error setting
+     */
+    public void prepareSession(String schema, IsolationLevel isolation) throws ApplyAlterException {
+        setSchema(schema);
+        setIsolation(isolation);
+        this.sessionSchema = schema;
+        this.sessionIsolation = isolation;
+    }
+
     /**
      * Get a current connection to this database instance with auto commit off.
      * Default auto commit can be changed by {@link DbConfig#setDbAutocommit(boolean)}
@@ -225,10 +268,94 @@ public abstract class DbInstance {
         return c;
     }
 
+    /**
+     * Create independent copy of this database instance, with its own connection (opened lazily).
+     * Used to work on the same database from several threads at once: the copy must be closed by
+     * {@link #closeConnection()} when no longer needed.
+     *
+     * @return new instance with the same configuration, not connected
+     */
+    public DbInstance createWorker() {
+        //make sure the caches exist, so that they are shared
+        getLogState();
+        getCheckokCache();
+        try {
+            final DbInstance worker = (DbInstance) clone();
+            worker.con = null;
+            worker.used = false;
+            worker.catalog = null;
+            return worker;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("bug: DbInstance must be cloneable", e);
+        }
+    }
+
+    /**
+     * Create a worker (see {@link #createWorker()}) connected to the database, with the same schema and isolation
+     * level as this instance, see {@link #prepareSession(String, IsolationLevel)}.
+     * Used to run one statement on several connections at once.
+     *
+     * @return new connected instance, must be closed by {@link #closeConnection()}
+     * @throws ApplyAlterException connection failed
+     */
+    public DbInstance createSessionWorker(RunContext ctx) throws ApplyAlterException {
+        final DbInstance worker = createWorker();
+        try {
+            worker.getConnection(ctx);
+            if (sessionSchema != null) {
+                worker.prepareSession(sessionSchema, sessionIsolation);
+            }
+        } catch (ApplyAlterException e) {
+            worker.closeConnection();
+            throw e;
+        }
+        return worker;
+    }
+
+    /**
+     * Prefetched log records of this instance, see {@link LogStateCache}.
+     */
+    synchronized LogStateCache getLogState() {
+        if (logState == null) {
+            logState = new LogStateCache();
+        }
+        return logState;
+    }
+
+    /**
+     * Prefetched checkok results of this instance, see {@link CheckokCache}.
+     */
+    synchronized CheckokCache getCheckokCache() {
+        if (checkokCache == null) {
+            checkokCache = new CheckokCache();
+        }
+        return checkokCache;
+    }
+
+    /**
+     * Catalog snapshot of this instance, see {@link CatalogSnapshot}.
+     */
+    CatalogSnapshot getCatalog() {
+        if (catalog == null) {
+            catalog = new CatalogSnapshot();
+        }
+        return catalog;
+    }
+
+    /**
+     * Forget the catalog snapshot: the catalog might have changed.
+     */
+    public void invalidateCatalog() {
+        if (catalog != null) {
+            catalog.clear();
+        }
+    }
+
     /**
      * Close connection
      */
     public void closeConnection() {
+        invalidateCatalog();
         if (con != null) {
             try {
                 con.close();
@@ -325,56 +452,121 @@ public abstract class DbInstance {
         return "wasg2.applyalter_pkg";
     }
 
+    /**
+     * Table with the latest log record of every alterscript (maintained together with {@link #getLogTable()}).
+     */
+    public String getStateTable() {
+        return "wasg2.applyalter_state";
+    }
+
+    /**
+     * Table with the version of internal tables (single row).
+     */
+    public String getVersionTable() {
+        return "wasg2.applyalter_version";
+    }
+
+    /**
+     * Table with checkpoints of resumable migrations (see {@link MigrationCheckpoint}).
+     */
+    public String getCheckpointTable() {
+        return "wasg2.applyalter_checkpoint";
+    }
+
     //--------------------------------------------------------------------------------------------------
 
     protected static final String[] MDTYPES_TABLE = {"TABLE", "ALIAS"};
     protected static final String[] MDTYPES_VIEW = {"VIEW"};
 
     /**
-     * Process the Check for this database instance.
-     * Default implementation checks by using JDBC metadata, but some checks are not supported.
+     * Process the Check for this database instance: the check is evaluated against the {@link CatalogSnapshot},
+     * objects of the checked type are loaded by {@link #loadCatalog} first time they are needed.
+     * Names are compared case-insensitively.
      *
      * @throws SQLException                  database error
      * @throws UnsupportedOperationException unsupported check type
      */
     public boolean check(RunContext runContext, Connection con, Check chk, String schema)
             throws SQLException, UnsupportedOperationException {
+        final CheckType type = chk.getType();
+        final String segmentTable = isCatalogLoadedPerTable(type) ? chk.getTable() : null;
+        final CatalogSnapshot snapshot = getCatalog();
+        Set<String> keys = snapshot.get(schema, type, segmentTable);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            loadCatalog(runContext, con, schema, type, segmentTable, keys);
+            snapshot.put(schema, type, segmentTable, keys);
+        }
+        final String key = CatalogSnapshot.key(CatalogSnapshot.isQualified(type) ? chk.getTable() : null,
+                chk.getName());
+        runContext.report(ReportLevel.STATEMENT_STEP, "Check: %s %s in %s", type, key, schema);
+
+        boolean rawResult = keys.contains(key);
+        //XOR with the "isInverted" flag
+        return rawResult ^ chk.isInverted();
+    }
+
+    /**
+     * Are objects of this type loaded separately for every table? Default implementation loads indexes
+     * per table, because JDBC metadata can't list them for the whole schema.
+     */
+    protected boolean isCatalogLoadedPerTable(CheckType type) {
+        return type == CheckType.index;
+    }
+
+    /**
+     * Load names of all objects of given type into the catalog snapshot.
+     * Default implementation uses JDBC metadata, but some types are not supported.
+     *
+     * @param schema schema
+     * @param type   object type
+     * @param table  table name when {@link #isCatalogLoadedPerTable(CheckType)}, null otherwise
+     * @param keys   output: {@link CatalogSnapshot#key(String, String) keys} of all objects
+     * @throws SQLException                  database error
+     * @throws UnsupportedOperationException unsupported check type
+     */
+    protected void loadCatalog(RunContext runContext, Connection con, String schema, CheckType type,
+                               String table, Set<String> keys)
+            throws SQLException, UnsupportedOperationException {
+        runContext.report(ReportLevel.STATEMENT_STEP, "Loading catalog: %s in %s%s", type, schema,
+                table == null ? "" : " " + table);
         final DatabaseMetaData md = con.getMetaData();
-        final String name = chk.getName();
-        final String table = chk.getTable();
         ResultSet rs = null;
         try {
-
-            switch (chk.getType()) {
+            switch (type) {
                 case table:
-                    rs = md.getTables(null, schema, name, MDTYPES_TABLE);
+                    rs = md.getTables(null, schema, "%", MDTYPES_TABLE);
+                    while (rs.next()) {
+                        keys.add(CatalogSnapshot.key(null, rs.getString("TABLE_NAME")));
+                    }
                     break;
                 case view:
-                    rs = md.getTables(null, schema, name, MDTYPES_VIEW);
+                    rs = md.getTables(null, schema, "%", MDTYPES_VIEW);
+                    while (rs.next()) {
+                        keys.add(CatalogSnapshot.key(null, rs.getString("TABLE_NAME")));
+                    }
                     break;
                 case column:
-                    rs = md.getColumns(null, schema, table, name);
+                    rs = md.getColumns(null, schema, "%", "%");
+                    while (rs.next()) {
+                        keys.add(CatalogSnapshot.key(rs.getString("TABLE_NAME"), rs.getString("COLUMN_NAME")));
+                    }
                     break;
                 case index:
                     rs = md.getIndexInfo(null, schema, table, false, true);
-                    //there is no way to pass in index name --> we have to iterate resultset and find it
                     while (rs.next()) {
-                        final String index_name = rs.getString("INDEX_NAME");
-                        if (name.equalsIgnoreCase(index_name)) {
-                            return true ^ chk.isInverted();
+                        //statistics rows have no name
+                        final String indexName = rs.getString("INDEX_NAME");
+                        if (indexName != null) {
+                            keys.add(CatalogSnapshot.key(null, indexName));
                         }
                     }
-                    return false ^ chk.isInverted();
+                    break;
                 default:
                     throw new UnsupportedOperationException(
-                            getClass().getSimpleName() + " does not support check type " + chk.getType()
+                            getClass().getSimpleName() + " does not support check type " + type
                     );
             }
-
-            boolean rawResult = rs.next();
-            //XOR with the "isInverted" flag
-            return rawResult ^ chk.isInverted();
-
         } finally {
             DbUtils.close(null, rs);
         }
@@ -422,6 +614,73 @@ public abstract class DbInstance {
         return tableBaseName;
     }
 
+    /**
+     * Read boundaries of equally populated ID intervals from the column statistics (histogram, quantiles).
+     * Default implementation does not support statistics.
+     *
+     * @param con    database connection
+     * @param table  table name, optionally with schema (current schema is used otherwise)
+     * @param column column name
+     * @return boundaries in ascending order; empty list if the statistics are not available
+     * @throws SQLException database error
+     */
+    public List<Long> loadKeyQuantiles(Connection con, String table, String column) throws SQLException {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Parse numeric statistics values, ignoring the ones that are not integers.
+     */
+    protected static List<Long> parseQuantiles(Iterable<String> values) {
+        final List<Long> result = new ArrayList<Long>();
+        for (String v : values) {
+            if (v == null) {
+                continue;
+            }
+            v = v.trim();
+            if (v.length() > 1 && v.startsWith("\"") && v.endsWith("\"")) {
+                v = v.substring(1, v.length() - 1);
+            }
+            try {
+                result.add(Long.parseLong(v));
+            } catch (NumberFormatException e) {
+                //not an integer: ignore
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Limit the query to the first row.
+     *
+     * @param select select query
+     * @return SQL
+     */
+    public String makeFirstRowSql(String select) {
+        return makeFirstRowsSql(select, 1);
+    }
+
+    /**
+     * Limit the query to the first rows.
+     *
+     * @param select select query
+     * @param rows   maximum number of rows
+     * @return SQL
+     */
+    public String makeFirstRowsSql(String select, long rows) {
+        return select + " fetch first " + rows + " rows only";
+    }
+
+    /**
+     * Does the database support row value comparison, like <code>(a, b) &gt; (?, ?)</code>, and use indexes for it?
+     *
+     * @return false = comparison must be expanded
+     */
+    public boolean isRowValueComparisonSupported() {
+        return false;
+    }
+
     /**
      * Return SQL creating temporary table with given name, created from given query.
      *
@@ -432,4 +691,160 @@ public abstract class DbInstance {
     public String makeCreateTemporaryTableAsSql(String tableName, String query) {
         throw new UnsupportedOperationException("Temporary tables not implemented for current database type");
     }
+
+    /**
+     * Query returning replication lag (single number, for throttling of migrations).
+     *
+     * @return SQL, null if not supported
+     */
+    public String getReplicationLagSql() {
+        return null;
+    }
+
+    /**
+     * Query returning number of lock waits (single number, for throttling of migrations).
+     *
+     * @return SQL, null if not supported
+     */
+    public String getLockWaitSql() {
+        return null;
+    }
+
+    /**
+     * Query returning estimated number of rows of a table from catalog statistics (single number; negative
+     * or no row when there are no statistics). Parameters: schema (null = current schema), table name.
+     *
+     * @return SQL, null if not supported
+     */
+    public String getRowEstimateSql() {
+        return null;
+    }
+
+    /**
+     * Is {@link #makeCreateTemporaryTableAsSql(String, String)} implemented?
+     */
+    public boolean isTemporaryTableSupported() {
+        return false;
+    }
+
+    /**
+     * Query listing partitions of a table, one row per partition: partition identifier (used by
+     * {@link #makePartitionBoundsSql} and {@link #getPartitionTarget}) and name for reports.
+     * Parameters: schema (null = current schema), table name.
+     *
+     * @return SQL, null if partitions are not supported
+     */
+    public String getPartitionsSql() {
+        return null;
+    }
+
+    /**
+     * Query returning minimum and maximum of the ID column in single partition.
+     *
+     * @param table     partitioned table
+     * @param partition partition identifier, see {@link #getPartitionsSql()}
+     * @param idColumn  ID column
+     */
+    public String makePartitionBoundsSql(String table, String partition, String idColumn) {
+        return String.format("select min(%1$s), max(%1$s) from %2$s", idColumn, partition);
+    }
+
+    /**
+     * Condition restricting rows of the partitioned table to single partition, for databases where partitions
+     * are not tables (see {@link #getPartitionTarget}).
+     *
+     * @param partition partition identifier, see {@link #getPartitionsSql()}
+     * @param idColumn  ID column
+     * @return SQL condition, null if the partition is addressed by {@link #getPartitionTarget} (default)
+     */
+    public String makePartitionCondition(String partition, String idColumn) {
+        return null;
+    }
+
+    /**
+     * Table addressing single partition in the migration statement.
+     *
+     * @param table     partitioned table
+     * @param partition partition identifier, see {@link #getPartitionsSql()}
+     * @return the partition itself (default: partitions are tables), or the partitioned table
+     */
+    public String getPartitionTarget(String table, String partition) {
+        return partition;
+    }
+
+    /**
+     * Does the database support <code>FOR UPDATE SKIP LOCKED</code> together with row limit?
+     *
+     * @return false = rows must be claimed by update (see {@link MigrationIdList})
+     */
+    public boolean isSkipLockedSupported() {
+        return false;
+    }
+
+    /**
+     * Limit the query to the first rows, lock them and skip the rows locked by other transactions.
+     *
+     * @param select select query
+     * @param rows   maximum number of rows
+     * @return SQL
+     */
+    public String makeSkipLockedSql(String select, long rows) {
+        return makeFirstRowsSql(select, rows) + " for update skip locked";
+    }
+
+    /**
+     * Return SQL creating regular (empty) table with the columns of given query.
+     *
+     * @param tableName table name
+     * @param query     select query which defines table structure
+     * @return SQL
+     */
+    public String makeCreateWorkTableAsSql(String tableName, String query) {
+        return String.format("create table %s as (%s) with no data", tableName, query);
+    }
+
+    /**
+     * Can a list of values be bound as single array parameter, like <code>id in (select unnest(?))</code>?
+     *
+     * @return false = the values must be bound as list of parameters
+     */
+    public boolean isArrayBindingSupported() {
+        return false;
+    }
+
+    /**
+     * Maximum number of values (or rows, for composite keys) bound as list of parameters.
+     */
+    public int getMaxInListSize() {
+        return 1000;
+    }
+
+    /**
+     * Return SQL of value list with parameters, usable as right side of IN predicate: <code>(?,?)</code> for single
+     * column, <code>(values (?,?),(?,?))</code> for several columns.
+     *
+     * @param rows    number of values (rows)
+     * @param columns number of columns
+     * @return SQL
+     */
+    public String makeValueListSql(int rows, int columns) {
+        final StringBuilder b = new StringBuilder(columns == 1 ? "(" : "(values ");
+        appendRows(b, rows, columns);
+        return b.append(')').toString();
+    }
+
+    protected static void appendRows(StringBuilder b, int rows, int columns) {
+        for (int r = 0; r < rows; r++) {
+            b.append(r == 0 ? "" : ",");
+            if (columns > 1) {
+                b.append('(');
+            }
+            for (int c = 0; c < columns; c++) {
+                b.append(c == 0 ? "?" : ",?");
+            }
+            if (columns > 1) {
+                b.append(')');
+            }
+        }
+    }
 }
@@ -43,6 +43,14 @@ public class DynamicQuery extends AbstractStatement {
 
     }
 
+    /**
+     * The executed queries are known only at runtime.
+     */
+    @Override
+    public TableFootprint getTableFootprint() {
+        return TableFootprint.UNKNOWN;
+    }
+
     private List<String> generateQueries(RunContext ctx, Connection connection, Map<String, byte[]> datafiles)
             throws SQLException {
         String sql = getStatement().trim();
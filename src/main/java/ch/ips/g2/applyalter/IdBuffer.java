@@ -0,0 +1,131 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client-side list of IDs for {@link MigrationIdList}: the result of the ID query, read once.
+ * Single integer column is kept in primitive <code>long[]</code> chunks; other keys (several columns,
+ * non-integer types) as rows of objects.
+ */
+class IdBuffer {
+    /**
+     * Number of IDs in one chunk.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int columns;
+    private final String[] typeNames;
+    private final boolean primitive;
+    private final List<long[]> chunks = new ArrayList<long[]>();
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    private int size;
+
+    private IdBuffer(int columns, String[] typeNames, boolean primitive) {
+        this.columns = columns;
+        this.typeNames = typeNames;
+        this.primitive = primitive;
+    }
+
+    /**
+     * Read the whole result set.
+     */
+    public static IdBuffer load(ResultSet rs) throws SQLException {
+        final ResultSetMetaData md = rs.getMetaData();
+        final int columns = md.getColumnCount();
+        final String[] typeNames = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            typeNames[i] = md.getColumnTypeName(i + 1);
+        }
+        final IdBuffer buffer = new IdBuffer(columns, typeNames, columns == 1 && isInteger(md.getColumnType(1)));
+        while (rs.next()) {
+            if (buffer.primitive) {
+                final long id = rs.getLong(1);
+                if (rs.wasNull()) {
+                    //NULL never matches anything
+                    continue;
+                }
+                buffer.add(id);
+            } else {
+                final Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                buffer.rows.add(row);
+                buffer.size++;
+            }
+        }
+        return buffer;
+    }
+
+    static boolean isInteger(int sqlType) {
+        return sqlType == Types.BIGINT || sqlType == Types.INTEGER || sqlType == Types.SMALLINT
+                || sqlType == Types.TINYINT;
+    }
+
+    /**
+     * Append single integer ID (primitive buffer only).
+     */
+    void add(long id) {
+        final int offset = size % CHUNK_SIZE;
+        if (offset == 0) {
+            chunks.add(new long[CHUNK_SIZE]);
+        }
+        chunks.get(chunks.size() - 1)[offset] = id;
+        size++;
+    }
+
+    /**
+     * Create primitive buffer of single integer column (used by tests).
+     */
+    static IdBuffer ofLongs(long... ids) {
+        final IdBuffer buffer = new IdBuffer(1, new String[]{"int8"}, true);
+        for (long id : ids) {
+            buffer.add(id);
+        }
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Database type name of the column (as reported by the driver), used to bind arrays.
+     */
+    public String getTypeName(int column) {
+        return typeNames[column];
+    }
+
+    /**
+     * Is this a single integer column, stored in <code>long[]</code>?
+     */
+    public boolean isPrimitive() {
+        return primitive;
+    }
+
+    public long getLong(int index) {
+        return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE];
+    }
+
+    /**
+     * Value of the ID column.
+     *
+     * @param index  row index
+     * @param column column index, from 0
+     */
+    public Object get(int index, int column) {
+        if (primitive) {
+            return getLong(index);
+        }
+        return rows.get(index)[column];
+    }
+}
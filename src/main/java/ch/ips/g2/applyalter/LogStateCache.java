@@ -0,0 +1,142 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Latest log records (applyalter_state) of one database instance, prefetched for all alterscripts of a bundle
+ * (incremental mode), so that every alterscript does not have to query the log table on its own.
+ * <p/>
+ * The cache is shared by all workers of the database instance (see {@link DbInstance#createWorker()}),
+ * so it is thread safe.
+ */
+class LogStateCache {
+    /**
+     * Maximum number of ids in one query.
+     */
+    public static final int CHUNK_SIZE = 500;
+
+    /**
+     * Latest log record of single alterscript.
+     */
+    public static class Entry {
+        private final String hash;
+        private final Timestamp at;
+
+        public Entry(String hash, Timestamp at) {
+            this.hash = hash;
+            this.at = at;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public Timestamp getAt() {
+            return at;
+        }
+    }
+
+    /**
+     * Ids which have been queried (including the ones without any record).
+     */
+    private final Set<String> prefetched = new HashSet<String>();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Read latest log records of all specified alterscripts, in chunks of {@link #CHUNK_SIZE} ids.
+     *
+     * @param con      database connection
+     * @param logTable state (or log) table name, see {@link DbInstance#getStateTable()}
+     * @param ids      alterscript ids
+     * @return number of ids found in the log
+     * @throws SQLException error reading the log; the ids read so far remain cached
+     */
+    public int prefetch(Connection con, String logTable, Collection<String> ids) throws SQLException {
+        final List<String> all = new ArrayList<String>(new HashSet<String>(ids));
+        int found = 0;
+        for (int from = 0; from < all.size(); from += CHUNK_SIZE) {
+            final List<String> chunk = all.subList(from, Math.min(all.size(), from + CHUNK_SIZE));
+            final StringBuilder sql = new StringBuilder("select id,hash,AT from ").append(logTable)
+                    .append(" where id in (");
+            for (int i = 0; i < chunk.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+
+            final Map<String, Entry> latest = new HashMap<String, Entry>();
+            PreparedStatement st = null;
+            ResultSet rs = null;
+            try {
+                st = con.prepareStatement(sql.toString());
+                for (int i = 0; i < chunk.size(); i++) {
+                    st.setString(i + 1, chunk.get(i));
+                }
+                rs = st.executeQuery();
+                while (rs.next()) {
+                    final String id = rs.getString(1);
+                    final Entry entry = new Entry(rs.getString(2), rs.getTimestamp(3));
+                    final Entry previous = latest.get(id);
+                    if (previous == null || isNewer(entry, previous)) {
+                        latest.put(id, entry);
+                    }
+                }
+            } finally {
+                DbUtils.close(st, rs);
+            }
+            synchronized (this) {
+                prefetched.addAll(chunk);
+                entries.putAll(latest);
+            }
+            found += latest.size();
+        }
+        return found;
+    }
+
+    private static boolean isNewer(Entry entry, Entry than) {
+        if (entry.getAt() == null) {
+            return false;
+        }
+        return than.getAt() == null || entry.getAt().after(than.getAt());
+    }
+
+    /**
+     * Has the alterscript been prefetched? If not, the caller must ask the database.
+     */
+    public synchronized boolean isPrefetched(String id) {
+        return prefetched.contains(id);
+    }
+
+    /**
+     * Latest log record.
+     *
+     * @param id alterscript id, must be {@link #isPrefetched(String) prefetched}
+     * @return latest record, null = alterscript has never been applied
+     */
+    public synchronized Entry get(String id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Forget the alterscript: its log record has been changed.
+     */
+    public synchronized void invalidate(String id) {
+        prefetched.remove(id);
+        entries.remove(id);
+    }
+
+    public synchronized void clear() {
+        prefetched.clear();
+        entries.clear();
+    }
+}
@@ -0,0 +1,450 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static ch.ips.g2.applyalter.ReportLevel.STATEMENT;
+import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
+
+/**
+ * Migration choosing its strategy automatically: the table is examined first (key type, row count from catalog
+ * statistics or by count, number of rows matching {@link #filter}, key bounds and density) and then the work
+ * is done by {@link MigrationIdRange}, {@link MigrationKeyset} or {@link MigrationIdList} with computed
+ * initial step; see {@link #choose}. The decision and the numbers behind it are logged as "auto" subreport.
+ * <p/>
+ * The placeholder ({@link #DEFAULT_PLACEHOLDER} by default) is replaced by condition selecting the keys of
+ * one batch (including {@link #filter}), so the statement is the same for every strategy.
+ * {@link #getStep()} is the wanted number of changed rows per batch, not the size of ID range.
+ */
+@XStreamAlias("migration-auto")
+public class MigrationAuto extends AbstractMigration {
+    public static final String DEFAULT_PLACEHOLDER = "AUTO_KEYS";
+    /**
+     * ID list is chosen when at most this fraction of rows matches the filter.
+     */
+    public static final double LIST_MAX_SELECTIVITY = 0.05;
+    /**
+     * ID range is chosen when at least this fraction of IDs between the bounds exists.
+     */
+    public static final double RANGE_MIN_DENSITY = 0.1;
+
+    public enum Strategy {
+        RANGE, KEYSET, LIST
+    }
+
+    /**
+     * Table to migrate, optionally with schema.
+     */
+    private String table;
+    /**
+     * Key columns, delimited by commas.
+     */
+    private String keycolumns;
+    /**
+     * Optional condition selecting the rows to migrate.
+     */
+    private String filter;
+    /**
+     * Optional bounds of single integer key; default: min and max of the key.
+     */
+    private Long fromid;
+    private String fromidexpr;
+    private Long toid;
+    private String toidexpr;
+
+    @Override
+    protected String getDefaultPlaceholder() {
+        return DEFAULT_PLACEHOLDER;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    public String getKeycolumns() {
+        return keycolumns;
+    }
+
+    public void setKeycolumns(String keycolumns) {
+        this.keycolumns = keycolumns;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    public Long getFromid() {
+        return fromid;
+    }
+
+    public void setFromid(Long fromid) {
+        this.fromid = fromid;
+    }
+
+    public String getFromidexpr() {
+        return fromidexpr;
+    }
+
+    public void setFromidexpr(String fromidexpr) {
+        this.fromidexpr = fromidexpr;
+    }
+
+    public Long getToid() {
+        return toid;
+    }
+
+    public void setToid(Long toid) {
+        this.toid = toid;
+    }
+
+    public String getToidexpr() {
+        return toidexpr;
+    }
+
+    public void setToidexpr(String toidexpr) {
+        this.toidexpr = toidexpr;
+    }
+
+    /**
+     * Check validity of this statement; raise exception if the alterscript is invalid.
+     *
+     * @throws ApplyAlterException invalid statement, invalid alterscript
+     */
+    public void checkParameters() {
+        if (statement == null)
+            throw new ApplyAlterException("invalid apply script: missing \"statement\" for " + this);
+        if (table == null)
+            throw new ApplyAlterException("invalid apply script: missing \"table\" for " + this);
+        if (keycolumns == null || keycolumns.trim().length() == 0)
+            throw new ApplyAlterException("invalid apply script: missing \"keycolumns\" for " + this);
+        if (step != null && step.longValue() < 1)
+            throw new ApplyAlterException("invalid apply script: invalid \"step\" for " + this);
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Numbers the decision is based on.
+     */
+    protected static class Estimate {
+        /**
+         * Single integer key column?
+         */
+        boolean integerKey;
+        /**
+         * Number of rows of the table; negative = unknown.
+         */
+        long rows = -1;
+        /**
+         * The row count comes from catalog statistics (false = counted).
+         */
+        boolean fromStatistics;
+        /**
+         * Number of rows matching the filter.
+         */
+        long matching = -1;
+        /**
+         * Key bounds (integer key only); null = empty table.
+         */
+        Long minId;
+        Long maxId;
+
+        double getDensity() {
+            if (minId == null || maxId == null || rows < 0) {
+                return 0;
+            }
+            return Math.min(1.0, (double) rows / Math.max(1, maxId - minId + 1));
+        }
+
+        double getSelectivity() {
+            if (rows <= 0 || matching < 0) {
+                return 1;
+            }
+            return Math.min(1.0, (double) matching / rows);
+        }
+    }
+
+    /**
+     * Chosen strategy with its initial step.
+     */
+    protected static class Plan {
+        final Strategy strategy;
+        final long step;
+        final String reason;
+
+        Plan(Strategy strategy, long step, String reason) {
+            this.strategy = strategy;
+            this.step = step;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Choose the strategy:
+     * <ul>
+     * <li>ID list, when the filter selects only a small fraction of rows ({@link #LIST_MAX_SELECTIVITY});</li>
+     * <li>ID range, for single integer key with density at least {@link #RANGE_MIN_DENSITY}; the step is
+     * the ID span expected to contain the wanted number of changed rows;</li>
+     * <li>keyset otherwise (composite, non-integer or sparse keys).</li>
+     * </ul>
+     *
+     * @param e           the estimate
+     * @param rowsPerStep wanted number of changed rows per batch
+     * @param filtered    is there a filter (ID list needs it)
+     */
+    protected static Plan choose(Estimate e, long rowsPerStep, boolean filtered) {
+        final double selectivity = e.getSelectivity();
+        if (filtered && e.matching >= 0 && selectivity <= LIST_MAX_SELECTIVITY) {
+            return new Plan(Strategy.LIST, rowsPerStep, String.format(
+                    "filter selects %d of %d rows (%.4f)", e.matching, e.rows, selectivity));
+        }
+        if (!e.integerKey) {
+            return new Plan(Strategy.KEYSET, rowsPerStep, "key is not single integer column");
+        }
+        if (e.minId == null || e.maxId == null) {
+            return new Plan(Strategy.KEYSET, rowsPerStep, "table is empty");
+        }
+        final double density = e.getDensity();
+        if (density < RANGE_MIN_DENSITY) {
+            return new Plan(Strategy.KEYSET, rowsPerStep, String.format(
+                    "sparse keys: %d rows in %d IDs (density %.4f)", e.rows, e.maxId - e.minId + 1, density));
+        }
+        final long span = Math.max(1, e.maxId - e.minId + 1);
+        final long idStep = (long) Math.ceil(rowsPerStep / (density * selectivity));
+        return new Plan(Strategy.RANGE, Math.max(1, Math.min(span, Math.max(rowsPerStep, idStep))), String.format(
+                "dense integer keys: %d rows in %d IDs (density %.4f, selectivity %.4f)",
+                e.rows, span, density, selectivity));
+    }
+
+    /**
+     * Condition replacing {@link #DEFAULT_PLACEHOLDER}: placeholder of the chosen strategy, limited by the filter
+     * (the ID list applies the filter in its ID query).
+     *
+     * @param strategy the chosen strategy
+     * @param columns  key columns
+     */
+    protected String makeReplacement(Strategy strategy, String columns) {
+        switch (strategy) {
+            case RANGE:
+                return filter == null
+                        ? String.format("(%s between %s)", columns, MigrationIdRange.DEFAULT_PLACEHOLDER)
+                        : String.format("((%s between %s) and (%s))", columns, MigrationIdRange.DEFAULT_PLACEHOLDER,
+                        filter);
+            case LIST:
+                return String.format("((%s) in %s)", columns, MigrationIdList.DEFAULT_PLACEHOLDER);
+            default:
+                //the filter limits the pages only, the statement runs for the whole key interval of a page
+                return filter == null ? MigrationKeyset.DEFAULT_PLACEHOLDER
+                        : String.format("(%s and (%s))", MigrationKeyset.DEFAULT_PLACEHOLDER, filter);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        checkParameters();
+        final Connection connection = dbConn.getConnection(ctx);
+        final String columns = keycolumns.trim();
+        final MigrationIdRange range = new MigrationIdRange();
+        range.setFromid(fromid);
+        range.setFromidexpr(fromidexpr);
+        range.setToid(toid);
+        range.setToidexpr(toidexpr);
+
+        final Estimate e;
+        try {
+            e = estimate(dbConn, ctx, connection, range);
+        } finally {
+            //do not keep snapshot of the analysis
+            connection.rollback();
+        }
+        final long rowsPerStep = step == null ? DEFAULT_STEP : step;
+        final Plan plan = choose(e, rowsPerStep, filter != null);
+        reportDecision(ctx, e, plan);
+
+        final AbstractMigration migration;
+        switch (plan.strategy) {
+            case RANGE:
+                if (range.getFromid() == null && range.getFromidexpr() == null) {
+                    range.setFromid(e.minId);
+                }
+                if (range.getToid() == null && range.getToidexpr() == null) {
+                    range.setToid(e.maxId);
+                }
+                migration = range;
+                break;
+            case LIST:
+                final MigrationIdList list = new MigrationIdList();
+                list.setIdcolumn(columns);
+                list.setIdquery(String.format("select %s from %s where %s", columns, table, filter));
+                migration = list;
+                break;
+            default:
+                final MigrationKeyset keyset = new MigrationKeyset();
+                keyset.setTable(table);
+                keyset.setKeycolumns(columns);
+                keyset.setFilter(filter);
+                migration = keyset;
+        }
+        final ProcessedQuery query = processQuery(getStatement(), makeReplacement(plan.strategy, columns));
+        if (query.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s",
+                    getPlaceholder() == null ? getDefaultPlaceholder() : getPlaceholder(), this.toString());
+        }
+        copySettings(migration);
+        migration.setStatement(query.statement);
+        migration.setStep(plan.step);
+        migration.execute(dbConn, ctx, datafiles);
+    }
+
+    protected Estimate estimate(DbInstance dbConn, RunContext ctx, Connection con, MigrationIdRange range)
+            throws SQLException {
+        final Estimate e = new Estimate();
+        final String columns = keycolumns.trim();
+
+        //key type
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement(String.format("select %s from %s where 1=0", columns, table));
+            rs = st.executeQuery();
+            final ResultSetMetaData md = rs.getMetaData();
+            e.integerKey = md.getColumnCount() == 1 && IdBuffer.isInteger(md.getColumnType(1));
+        } finally {
+            DbUtils.close(st, rs);
+        }
+
+        //row count: statistics, count as the fallback
+        final String estimateSql = dbConn.getRowEstimateSql();
+        if (estimateSql != null) {
+            final int dot = table.lastIndexOf('.');
+            final Long rows = queryLong(con, estimateSql,
+                    dot < 0 ? null : table.substring(0, dot).trim(), table.substring(dot + 1).trim());
+            if (rows != null && rows >= 0) {
+                e.rows = rows;
+                e.fromStatistics = true;
+            }
+        }
+        if (e.rows < 0) {
+            ctx.report(STATEMENT_STEP, "no statistics of %s, counting rows", table);
+            e.rows = queryLong(con, String.format("select count(*) from %s", table));
+        }
+        if (filter != null) {
+            e.matching = queryLong(con, String.format("select count(*) from %s where %s", table, filter));
+        } else {
+            e.matching = e.rows;
+        }
+
+        //bounds
+        if (e.integerKey) {
+            if ((range.getFromid() == null && range.getFromidexpr() == null)
+                    || (range.getToid() == null && range.getToidexpr() == null)) {
+                st = null;
+                rs = null;
+                try {
+                    st = con.prepareStatement(String.format("select min(%1$s), max(%1$s) from %2$s", columns, table));
+                    rs = st.executeQuery();
+                    if (rs.next()) {
+                        final long min = rs.getLong(1);
+                        e.minId = rs.wasNull() ? null : min;
+                        final long max = rs.getLong(2);
+                        e.maxId = rs.wasNull() ? null : max;
+                    }
+                } finally {
+                    DbUtils.close(st, rs);
+                }
+            }
+            if (range.getFromid() != null || range.getFromidexpr() != null) {
+                e.minId = range.fetchRangeValue(ctx, con, range.getFromid(), range.getFromidexpr());
+            }
+            if (range.getToid() != null || range.getToidexpr() != null) {
+                e.maxId = range.fetchRangeValue(ctx, con, range.getToid(), range.getToidexpr());
+            }
+        }
+        return e;
+    }
+
+    private static Long queryLong(Connection con, String sql, String... params) throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement(sql);
+            for (int i = 0; i < params.length; i++) {
+                st.setString(i + 1, params[i]);
+            }
+            rs = st.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            final long value = rs.getLong(1);
+            return rs.wasNull() ? null : value;
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    private void reportDecision(final RunContext ctx, final Estimate e, final Plan plan) {
+        ctx.report(STATEMENT, "automatic migration of %s: %s, step %d (%s)", table,
+                plan.strategy.name().toLowerCase(), plan.step, plan.reason);
+        ctx.subreport("auto", new Runnable() {
+            public void run() {
+                ctx.reportProperty(STATEMENT, "strategy", plan.strategy.name().toLowerCase());
+                ctx.reportProperty(STATEMENT, "step", plan.step);
+                ctx.reportProperty(STATEMENT, "reason", plan.reason);
+                ctx.reportProperty(STATEMENT, "integer-key", e.integerKey);
+                ctx.reportProperty(STATEMENT, "rows", e.rows);
+                ctx.reportProperty(STATEMENT, "rows-source", e.fromStatistics ? "statistics" : "count");
+                ctx.reportProperty(STATEMENT, "matching", e.matching);
+                if (e.minId != null && e.maxId != null) {
+                    ctx.reportProperty(STATEMENT, "min-id", e.minId);
+                    ctx.reportProperty(STATEMENT, "max-id", e.maxId);
+                    ctx.reportProperty(STATEMENT, "density", String.format("%.4f", e.getDensity()));
+                }
+                ctx.reportProperty(STATEMENT, "selectivity", String.format("%.4f", e.getSelectivity()));
+            }
+        });
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+    @Override
+    public TableFootprint getTableFootprint() {
+        if (table == null) {
+            return TableFootprint.UNKNOWN;
+        }
+        return super.getTableFootprint().merge(TableFootprint.analyzeExpression(String.format("select %s from %s%s",
+                keycolumns, table, filter == null ? "" : " where " + filter)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(this.getClass().getSimpleName()).append(": ");
+        b.append("logid: ").append(logid).append("\n");
+        b.append("statement:").append(" ").append(statement).append("\n");
+        b.append("table: ").append(table).append("\n");
+        b.append("keycolumns: ").append(keycolumns).append("\n");
+        if (filter != null) {
+            b.append("filter: ").append(filter).append("\n");
+        }
+        b.append("step: ").append(step).append("\n");
+        b.append("description: ").append(description).append("\n");
+        return b.toString();
+    }
+}
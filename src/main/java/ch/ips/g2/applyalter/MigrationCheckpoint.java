@@ -0,0 +1,63 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Checkpoint of resumable migration: single row of {@link DbInstance#getCheckpointTable()} keyed by
+ * (logid, instance id), holding the position where the migration should continue.
+ * <p/>
+ * The checkpoint is written on the migration connection, so it is committed (or rolled back, in dry run)
+ * together with the step.
+ */
+class MigrationCheckpoint {
+    private final String table;
+    private final String logid;
+    private final String instance;
+
+    public MigrationCheckpoint(DbInstance d, String logid) {
+        this.table = d.getCheckpointTable();
+        this.logid = logid;
+        this.instance = d.getId();
+    }
+
+    /**
+     * Read the checkpoint.
+     *
+     * @return saved position, null if there is no checkpoint
+     */
+    @Nullable
+    public String load(Connection c) throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = c.prepareStatement("select position from " + table + " where logid = ? and instance = ?");
+            st.setString(1, logid);
+            st.setString(2, instance);
+            rs = st.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Replace the checkpoint; not committed.
+     */
+    public void save(Connection c, String position) throws SQLException {
+        clear(c);
+        DbUtils.executeUpdate(c, "insert into " + table + " (logid, instance, position, at) values (?, ?, ?, ?)",
+                logid, instance, position, new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Remove the checkpoint (migration has finished); not committed.
+     */
+    public void clear(Connection c) throws SQLException {
+        DbUtils.executeUpdate(c, "delete from " + table + " where logid = ? and instance = ?", logid, instance);
+    }
+}
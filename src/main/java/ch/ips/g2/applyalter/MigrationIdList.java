@@ -2,10 +2,15 @@ package ch.ips.g2.applyalter;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ch.ips.g2.applyalter.ReportLevel.DETAIL;
 import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
@@ -19,6 +24,16 @@ import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
  * temporary table and then processed in batches. Every batch is made by deleting rows from the idlist
  * temporary table and inserting into second temporary table. This temporary table is then used in the
  * main query.
+ * <p/>
+ * Alternatively (with {@link #clientbuffer}, or automatically when the database has no temporary tables),
+ * the ID list is read once into {@link IdBuffer} on the client and every batch is bound to the main query
+ * as a parameter: single array on PostgreSQL, list of parameters elsewhere.
+ * <p/>
+ * With {@link #parallel} greater than 1, the IDs are stored in a regular work table and processed by several
+ * worker connections at once; see {@link #executeQueue}.
+ * <p/>
+ * The run can be limited by {@link #maxblkcnt} and {@link #maxseconds}; there is no checkpoint, the next run
+ * continues by the ID query (which should select only the rows that still need the migration).
  *
  * @author Kamil Podlesak &lt;kamil.podlesak@ips-ag.cz&gt;
  * @version $Id$
@@ -30,6 +45,15 @@ public class MigrationIdList extends AbstractMigration {
 
     private String idquery;
     private String idcolumn;
+    /**
+     * Keep the ID list on the client instead of temporary tables; null = only when the database does not support
+     * temporary tables.
+     */
+    private Boolean clientbuffer;
+    /**
+     * Number of worker connections; null or 1 = single connection.
+     */
+    private Integer parallel;
 
     /**
      * Source statement: required, must contain SELECT statement that produces temporary table.
@@ -61,6 +85,26 @@ public class MigrationIdList extends AbstractMigration {
         this.idcolumn = idcolumn;
     }
 
+    public Boolean getClientbuffer() {
+        return clientbuffer;
+    }
+
+    public void setClientbuffer(Boolean clientbuffer) {
+        this.clientbuffer = clientbuffer;
+    }
+
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    protected boolean isClientBuffered(DbInstance dbConn) {
+        return clientbuffer == null ? !dbConn.isTemporaryTableSupported() : clientbuffer;
+    }
+
     @Override
     protected String getDefaultPlaceholder() {
         return DEFAULT_PLACEHOLDER;
@@ -88,6 +132,18 @@ public class MigrationIdList extends AbstractMigration {
 
     public static final String TEMP_TABLE_MAIN = "MGR_IDS";
     public static final String TEMP_TABLE_BATCH = "MIG_BATCH";
+    /**
+     * Fetch size of the ID query in client-side mode.
+     */
+    public static final int ID_FETCH_SIZE = 10000;
+    /**
+     * Prefix of the work table name in parallel mode.
+     */
+    public static final String WORK_TABLE_PREFIX = "APPLYALTER_WQ_";
+    /**
+     * Column of the work table marking the rows claimed by a worker (databases without SKIP LOCKED).
+     */
+    public static final String CLAIM_COLUMN = "APPLYALTER_WORKER";
 
     /**
      * Create temporary table. This method is DB2-specific!
@@ -135,6 +191,17 @@ public class MigrationIdList extends AbstractMigration {
         final Connection connection = dbConn.getConnection(ctx);
         commitStep(ctx, connection);
 
+        if (parallel != null && parallel > 1) {
+            executeQueue(dbConn, ctx, connection);
+            return;
+        } else if (parallel != null && parallel < 1) {
+            throw new ApplyAlterException("invalid parallel value: %d", parallel);
+        }
+        if (isClientBuffered(dbConn)) {
+            executeBuffered(dbConn, ctx, connection);
+            return;
+        }
+
         //create temporary table, empty
         final String tableMain = createTempTable(dbConn, ctx, TEMP_TABLE_MAIN);
         final String tableBatch = createTempTable(dbConn, ctx, TEMP_TABLE_BATCH);
@@ -161,10 +228,14 @@ public class MigrationIdList extends AbstractMigration {
         PreparedStatement stDeleteBatch = null;
         PreparedStatement stCleanBatchTable = null;
         PreparedStatement stMain = null;
+        final MigrationProgress progress = createProgress(dbConn, totalIdCount);
         try {
             //prepare statements for batches
-            String sqlCopyBatch = String.format("insert into %2$s (select * from %1$s fetch first %3$d rows only)",
-                    tableMain, tableBatch, getStep());
+            final AdaptiveStep step = createAdaptiveStep();
+            final Budget budget = createBudget();
+            final Throttle throttle = createThrottle(dbConn);
+            long preparedStep = step.get();
+            String sqlCopyBatch = makeCopyBatchSql(tableMain, tableBatch, preparedStep);
             String sqlDeleteBatch = String.format("delete from %1$s where (%3$s) in (select %3$s from %2$s)",
                     tableMain, tableBatch, getIdcolumn());
 
@@ -177,12 +248,21 @@ public class MigrationIdList extends AbstractMigration {
             stCleanBatchTable = connection.prepareStatement(String.format("delete from %s", tableBatch));
             stMain = connection.prepareStatement(mainQuery.statement);
 
-            final int supposedBatchCount = totalIdCount / getStep().intValue();
             //and process the batches
             int batchCount = 0;
             int updatedCount = 0;
             int processedCount = 0;
             do {
+                if (budget.isExhausted()) {
+                    throw budgetExhausted(budget, null);
+                }
+                if (step.get() != preparedStep) {
+                    //adaptive step has changed
+                    preparedStep = step.get();
+                    DbUtils.close(stCopyBatch);
+                    stCopyBatch = null;
+                    stCopyBatch = connection.prepareStatement(makeCopyBatchSql(tableMain, tableBatch, preparedStep));
+                }
                 //batch, step 0: clean the batch
                 stCleanBatchTable.executeUpdate();
                 //batch, step 1: select the batch
@@ -198,15 +278,21 @@ public class MigrationIdList extends AbstractMigration {
                 connection.commit();
 
                 // batch, step 3: execute update
+                final long start = System.currentTimeMillis();
                 final int updated = stMain.executeUpdate();
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration);
                 updatedCount += updated;
                 processedCount += copied;
 
-                ctx.report(DETAIL, "  batch %d/%d: %d of %d updated",
-                        batchCount, supposedBatchCount, updated, copied);
+                ctx.report(DETAIL, "  batch %d: %d of %d updated (%d/%d rows processed)",
+                        batchCount, updated, copied, processedCount, totalIdCount);
 
                 // batch, step 4: commit or rollback update depending on run mode
                 commitStep(ctx, connection);
+                budget.blockDone();
+                progress.batch(ctx, (processedCount - copied + 1) + "-" + processedCount, copied, updated, duration);
+                throttle.pause(ctx, connection, step, updated);
 
                 //ctx.report( DETAIL, "   batch cleaned up, going to next one" );
             }
@@ -217,6 +303,7 @@ public class MigrationIdList extends AbstractMigration {
             );
 
         } finally {
+            progress.finish(ctx);
             DbUtils.close(stCopyBatch);
             DbUtils.close(stDeleteBatch);
             DbUtils.close(stCleanBatchTable);
@@ -225,6 +312,345 @@ public class MigrationIdList extends AbstractMigration {
 
     }
 
+    /**
+     * Client-side strategy: read the ID list into {@link IdBuffer} and bind every batch to the main query.
+     */
+    protected void executeBuffered(DbInstance dbConn, RunContext ctx, Connection connection)
+            throws SQLException {
+        final IdBuffer ids = loadIdBuffer(ctx, connection);
+        ctx.report(ReportLevel.STATEMENT, "total %d rows to be migrated", ids.size());
+
+        final boolean array = ids.getColumns() == 1 && dbConn.isArrayBindingSupported();
+        final AdaptiveStep step = createAdaptiveStep();
+        final Budget budget = createBudget();
+        final Throttle throttle = createThrottle(dbConn);
+        final long limit = array ? Integer.MAX_VALUE : Math.max(1, dbConn.getMaxInListSize());
+
+        PreparedStatement stMain = null;
+        ProcessedQuery mainQuery = null;
+        final MigrationProgress progress = createProgress(dbConn, ids.size());
+        int preparedRows = -1;
+        try {
+            if (array) {
+                mainQuery = processQuery(getStatement(), "(select unnest(?))");
+                checkReplacements(mainQuery);
+                ctx.report(STATEMENT_STEP, "migration query: %s", mainQuery.statement);
+                stMain = connection.prepareStatement(mainQuery.statement);
+            }
+
+            int batchCount = 0;
+            int updatedCount = 0;
+            int index = 0;
+            while (index < ids.size()) {
+                if (budget.isExhausted()) {
+                    throw budgetExhausted(budget, null);
+                }
+                final int rows = (int) Math.min(Math.min(step.get(), limit), ids.size() - index);
+                if (!array && rows != preparedRows) {
+                    //first batch, last batch or adaptive step has changed
+                    DbUtils.close(stMain);
+                    stMain = null;
+                    mainQuery = processQuery(getStatement(), dbConn.makeValueListSql(rows, ids.getColumns()));
+                    checkReplacements(mainQuery);
+                    if (preparedRows < 0) {
+                        ctx.report(STATEMENT_STEP, "migration query: %s", mainQuery.statement);
+                    }
+                    stMain = connection.prepareStatement(mainQuery.statement);
+                    preparedRows = rows;
+                }
+                batchCount++;
+                if (array) {
+                    final Array value = createIdArray(connection, ids, index, rows);
+                    for (int r = 0; r < mainQuery.replacements; r++) {
+                        stMain.setArray(r + 1, value);
+                    }
+                } else {
+                    bindIdList(stMain, mainQuery.replacements, ids, index, rows);
+                }
+
+                final long start = System.currentTimeMillis();
+                final int updated = stMain.executeUpdate();
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration);
+                updatedCount += updated;
+                index += rows;
+
+                ctx.report(DETAIL, "  batch %d: %d of %d updated (%d/%d rows processed)",
+                        batchCount, updated, rows, index, ids.size());
+                commitStep(ctx, connection);
+                budget.blockDone();
+                progress.batch(ctx, (index - rows + 1) + "-" + index, rows, updated, duration);
+                throttle.pause(ctx, connection, step, updated);
+            }
+
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated in %d batches (%d rows processed)",
+                    updatedCount, batchCount, index
+            );
+        } finally {
+            progress.finish(ctx);
+            DbUtils.close(stMain);
+        }
+    }
+
+    /**
+     * Parallel strategy: the IDs are stored in a regular work table, which is used as a queue by
+     * {@link #parallel} workers. Every worker claims a batch of IDs by <code>FOR UPDATE SKIP LOCKED</code>
+     * (binding them to the main query like {@link #executeBuffered}), or, on databases without it, by marking
+     * the rows by {@link #CLAIM_COLUMN}. The batch is then removed from the work table in the same transaction
+     * as the main query; in other run modes than {@link RunMode#SHARP}, the main query is rolled back
+     * to savepoint, but the removal is committed. The work table is dropped at the end.
+     */
+    protected void executeQueue(final DbInstance dbConn, final RunContext ctx, Connection connection)
+            throws SQLException {
+        final boolean skipLocked = dbConn.isSkipLockedSupported();
+        final String table = WORK_TABLE_PREFIX + Long.toString(System.currentTimeMillis(), 36).toUpperCase();
+        final String workQuery = skipLocked ? getIdquery().trim() : String.format(
+                "select q.*, cast(null as integer) as %s from (%s) q", CLAIM_COLUMN, getIdquery().trim());
+        try {
+            final String sql = dbConn.makeCreateWorkTableAsSql(table, workQuery);
+            ctx.report(DETAIL, "creating work table: %s", sql);
+            DbUtils.executeUpdate(connection, sql);
+            DbUtils.executeUpdate(connection,
+                    String.format("create index %1$s_IDX on %1$s (%2$s)", table, getIdcolumn()));
+            connection.commit();
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to create work table %s: %s", e, table, e.getMessage());
+        }
+
+        MigrationProgress progress = null;
+        try {
+            final String insertSql = String.format("INSERT INTO %s (%s)", table, workQuery);
+            ctx.report(STATEMENT_STEP, "getting source data: %s", insertSql);
+            final int totalIdCount = DbUtils.executeUpdate(connection, insertSql);
+            connection.commit();
+            ctx.report(ReportLevel.STATEMENT, "total %d rows to be migrated by %d workers (%s)", totalIdCount,
+                    parallel, skipLocked ? "skip locked" : "claim column");
+
+            final AdaptiveStep step = createAdaptiveStep();
+            final Budget budget = createBudget();
+            final Throttle throttle = createThrottle(dbConn);
+            final MigrationProgress workerProgress = createProgress(dbConn, totalIdCount);
+            progress = workerProgress;
+            final AtomicLong updatedCount = new AtomicLong();
+            final AtomicBoolean exhausted = new AtomicBoolean();
+            runWorkers(dbConn, ctx, parallel, "applyalter-queue-", new Worker() {
+                public void run(int workerNum, DbInstance worker, AtomicBoolean stop) throws SQLException {
+                    runQueueWorker(workerNum, worker, ctx, table, skipLocked, step, budget, throttle,
+                            workerProgress, updatedCount, stop, exhausted);
+                }
+            });
+            if (exhausted.get()) {
+                throw budgetExhausted(budget, null);
+            }
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated (%d rows processed)",
+                    updatedCount.get(), totalIdCount);
+        } finally {
+            if (progress != null) {
+                progress.finish(ctx);
+            }
+            try {
+                connection.rollback();
+                DbUtils.executeUpdate(connection, "drop table " + table);
+                connection.commit();
+            } catch (SQLException e) {
+                ctx.report(DETAIL, "failed to drop work table %s: %s", table, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Body of single worker thread of {@link #executeQueue}.
+     */
+    private void runQueueWorker(int workerNum, DbInstance worker, RunContext ctx, String table, boolean skipLocked,
+                                AdaptiveStep step, Budget budget, Throttle throttle, MigrationProgress progress,
+                                AtomicLong updatedCount, AtomicBoolean stop, AtomicBoolean exhausted)
+            throws SQLException {
+        final Connection c = worker.getConnection(ctx);
+        final boolean sharp = ctx.getRunMode() == RunMode.SHARP;
+        final long limit = worker.isArrayBindingSupported() && !getIdcolumn().contains(",")
+                ? Integer.MAX_VALUE : Math.max(1, worker.getMaxInListSize());
+        final String unclaimed = String.format("select %s from %s where %s is null", getIdcolumn(), table,
+                CLAIM_COLUMN);
+        while (!stop.get()) {
+            if (budget.isExhausted()) {
+                exhausted.set(true);
+                break;
+            }
+            final long rows = skipLocked ? Math.min(step.get(), limit) : step.get();
+            final int claimed;
+            final long start;
+            final int updated;
+            if (skipLocked) {
+                //claim: lock the batch
+                final IdBuffer ids;
+                PreparedStatement st = null;
+                ResultSet rs = null;
+                try {
+                    st = c.prepareStatement(worker.makeSkipLockedSql(
+                            String.format("select %s from %s", getIdcolumn(), table), rows));
+                    rs = st.executeQuery();
+                    ids = IdBuffer.load(rs);
+                } finally {
+                    DbUtils.close(st, rs);
+                }
+                claimed = ids.size();
+                if (claimed == 0) {
+                    c.rollback();
+                    break;
+                }
+                final boolean array = ids.getColumns() == 1 && worker.isArrayBindingSupported();
+                final String listSql = array ? "(select unnest(?))" : worker.makeValueListSql(claimed,
+                        ids.getColumns());
+                final ProcessedQuery query = processQuery(getStatement(), listSql);
+                checkReplacements(query);
+
+                final Savepoint savepoint = sharp ? null : c.setSavepoint();
+                start = System.currentTimeMillis();
+                updated = executeWithIds(c, query.statement, query.replacements, ids, array);
+                if (savepoint != null) {
+                    c.rollback(savepoint);
+                }
+                executeWithIds(c, String.format("delete from %s where (%s) in %s", table, getIdcolumn(), listSql),
+                        1, ids, array);
+            } else {
+                //claim: mark the batch
+                claimed = DbUtils.executeUpdate(c, String.format("update %1$s set %2$s = ? where %2$s is null"
+                                + " and (%3$s) in (%4$s)", table, CLAIM_COLUMN, getIdcolumn(),
+                        worker.makeFirstRowsSql(unclaimed, rows)), workerNum);
+                c.commit();
+                if (claimed == 0) {
+                    //the rows might have been claimed by another worker in the meantime
+                    if (!hasRows(c, worker.makeFirstRowSql(unclaimed))) {
+                        break;
+                    }
+                    continue;
+                }
+                final ProcessedQuery query = processQuery(getStatement(), String.format(
+                        "(select %s from %s where %s = %d)", getIdcolumn(), table, CLAIM_COLUMN, workerNum));
+                checkReplacements(query);
+
+                final Savepoint savepoint = sharp ? null : c.setSavepoint();
+                start = System.currentTimeMillis();
+                updated = DbUtils.executeUpdate(c, query.statement);
+                if (savepoint != null) {
+                    c.rollback(savepoint);
+                }
+                DbUtils.executeUpdate(c, String.format("delete from %s where %s = ?", table, CLAIM_COLUMN),
+                        workerNum);
+            }
+            //the removal from the work table is committed in any run mode
+            c.commit();
+            final long duration = System.currentTimeMillis() - start;
+            step.update(ctx, duration);
+            budget.blockDone();
+            final long sum = updatedCount.addAndGet(updated);
+            synchronized (ctx) {
+                ctx.report(DETAIL, "  worker %d: batch of %d finished, %d updated, total %d",
+                        workerNum, claimed, updated, sum);
+            }
+            progress.batch(ctx, "worker " + workerNum, claimed, updated, duration);
+            throttle.pause(ctx, c, step, updated);
+        }
+    }
+
+    private static boolean hasRows(Connection c, String sql) throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = c.prepareStatement(sql);
+            rs = st.executeQuery();
+            return rs.next();
+        } finally {
+            DbUtils.close(st, rs);
+            c.rollback();
+        }
+    }
+
+    /**
+     * Execute statement with IDs bound to its value lists.
+     *
+     * @param array bind the IDs as single array (single column only)
+     */
+    private static int executeWithIds(Connection c, String sql, int replacements, IdBuffer ids, boolean array)
+            throws SQLException {
+        final PreparedStatement st = c.prepareStatement(sql);
+        try {
+            if (array) {
+                final Array value = createIdArray(c, ids, 0, ids.size());
+                for (int r = 0; r < replacements; r++) {
+                    st.setArray(r + 1, value);
+                }
+            } else {
+                bindIdList(st, replacements, ids, 0, ids.size());
+            }
+            return st.executeUpdate();
+        } finally {
+            DbUtils.close(st);
+        }
+    }
+
+    private void checkReplacements(ProcessedQuery query) {
+        if (query.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s",
+                    getPlaceholder() == null ? getDefaultPlaceholder() : getPlaceholder(), this.toString());
+        }
+    }
+
+    private IdBuffer loadIdBuffer(RunContext ctx, Connection connection) {
+        ctx.report(STATEMENT_STEP, "getting source data: %s", getIdquery());
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = connection.prepareStatement(getIdquery().trim());
+            st.setFetchSize(ID_FETCH_SIZE);
+            rs = st.executeQuery();
+            return IdBuffer.load(rs);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to get main ID list: %s", e, e.getMessage());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    private static Array createIdArray(Connection connection, IdBuffer ids, int from, int rows)
+            throws SQLException {
+        final Object[] values = new Object[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = ids.get(from + i, 0);
+        }
+        return connection.createArrayOf(ids.getTypeName(0), values);
+    }
+
+    /**
+     * Bind IDs to value lists, made by {@link DbInstance#makeValueListSql(int, int)}.
+     *
+     * @param st           prepared statement
+     * @param replacements number of value lists in the statement
+     * @param ids          ID list
+     * @param from         first row of the batch
+     * @param rows         number of rows of the batch
+     */
+    protected static void bindIdList(PreparedStatement st, int replacements, IdBuffer ids, int from, int rows)
+            throws SQLException {
+        int param = 1;
+        for (int r = 0; r < replacements; r++) {
+            for (int i = from; i < from + rows; i++) {
+                for (int c = 0; c < ids.getColumns(); c++) {
+                    if (ids.isPrimitive()) {
+                        st.setLong(param++, ids.getLong(i));
+                    } else {
+                        st.setObject(param++, ids.get(i, c));
+                    }
+                }
+            }
+        }
+    }
+
+    private static String makeCopyBatchSql(String tableMain, String tableBatch, long step) {
+        return String.format("insert into %2$s (select * from %1$s fetch first %3$d rows only)",
+                tableMain, tableBatch, step);
+    }
+
     /**
      * Phase A: fill the main temporary table.
      */
@@ -239,6 +665,11 @@ public class MigrationIdList extends AbstractMigration {
     }
 
     //-----------------------------------------------------------------------------------------------------------------
+    @Override
+    public TableFootprint getTableFootprint() {
+        return super.getTableFootprint().merge(TableFootprint.analyze(idquery));
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
@@ -247,6 +678,21 @@ public class MigrationIdList extends AbstractMigration {
         b.append("statement:").append(" ").append(statement).append("\n");
         b.append("idquery: ").append(idquery).append("\n");
         b.append("step: ").append(step).append("\n");
+        if (targetms != null) {
+            b.append("targetms: ").append(targetms).append("\n");
+        }
+        if (maxblkcnt != null) {
+            b.append("maxblkcnt: ").append(maxblkcnt).append("\n");
+        }
+        if (maxseconds != null) {
+            b.append("maxseconds: ").append(maxseconds).append("\n");
+        }
+        if (parallel != null) {
+            b.append("parallel: ").append(parallel).append("\n");
+        }
+        if (clientbuffer != null) {
+            b.append("clientbuffer: ").append(clientbuffer).append("\n");
+        }
         b.append("description: ").append(description).append("\n");
         return b.toString();
     }
@@ -2,11 +2,18 @@ package ch.ips.g2.applyalter;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
+import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
 
@@ -19,6 +26,21 @@ import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
  * Important limitation of this migration is that the migrated data table must have single BIGINT primary key
  * column. It is not possible to migrate tables with composite keys, tables with non-integer keys or multiple
  * tables at once.
+ * <p/>
+ * With {@link #parallel} greater than 1, the range is processed by several worker connections at once;
+ * see {@link #executeParallel}.
+ * <p/>
+ * With {@link #seekexpr}, empty steps are followed by a query for the next existing ID and the migration
+ * jumps straight to it ("seek" mode for sparse IDs).
+ * <p/>
+ * With {@link #checkpoint}, the next ID is recorded by {@link MigrationCheckpoint} in the transaction of every step
+ * (in parallel mode, after every committed step, see {@link #executeParallel}) and the next run continues from it.
+ * <p/>
+ * With {@link #commitEvery}, several consecutive steps are sent as one JDBC batch and committed together;
+ * {@link #commitEveryMs} keeps the transaction open over several batches (serial mode only).
+ * <p/>
+ * With {@link #partitiontable}, every partition of the table is processed as separate unit with its own bounds;
+ * see {@link #executePartitions}.
  *
  * @version $Id$
  */
@@ -29,11 +51,49 @@ public class MigrationIdRange extends AbstractMigration {
      * Replacement for {@link #DEFAULT_PLACEHOLDER} (not configurable).
      */
     protected static final String REPLACEMENT = "? and ?";
+    /**
+     * Replaced by the partition (or the partitioned table, if partitions are not tables) in partition mode.
+     */
+    public static final String PARTITION_PLACEHOLDER = "PARTITION_TABLE";
 
     private Long fromid;
     private String fromidexpr;
     private Long toid;
     private String toidexpr;
+    /**
+     * Number of worker connections; null or 1 = single connection.
+     */
+    private Integer parallel;
+    /**
+     * Table (optionally with schema) and column with statistics used to split the range in parallel mode,
+     * so that skewed IDs are split evenly; optional.
+     */
+    private String statstable;
+    private String statscolumn;
+    /**
+     * Seek query: returns the smallest existing ID greater than the parameter (every "?" is bound to the last
+     * ID of the empty step), or no row/NULL when there is none; for example
+     * <code>select min(id) from tab where id > ?</code>. Optional.
+     */
+    private String seekexpr;
+    /**
+     * Number of consecutive steps sent as one JDBC batch and committed together; null or 1 = every step.
+     */
+    @XStreamAlias("commit-every")
+    private Integer commitEvery;
+    /**
+     * Commit no sooner than after this time in milliseconds (several batches in one transaction); optional.
+     */
+    @XStreamAlias("commit-every-ms")
+    private Long commitEveryMs;
+    /**
+     * Partitioned table (optionally with schema): its partitions are processed separately; optional.
+     */
+    private String partitiontable;
+    /**
+     * ID column, used to find the bounds of every partition.
+     */
+    private String idcolumn;
 
     @Override
     protected String getDefaultPlaceholder() {
@@ -73,6 +133,70 @@ public class MigrationIdRange extends AbstractMigration {
         this.toidexpr = toidexpr;
     }
 
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    public String getStatstable() {
+        return statstable;
+    }
+
+    public void setStatstable(String statstable) {
+        this.statstable = statstable;
+    }
+
+    public String getStatscolumn() {
+        return statscolumn;
+    }
+
+    public void setStatscolumn(String statscolumn) {
+        this.statscolumn = statscolumn;
+    }
+
+    public String getSeekexpr() {
+        return seekexpr;
+    }
+
+    public void setSeekexpr(String seekexpr) {
+        this.seekexpr = seekexpr;
+    }
+
+    public Integer getCommitEvery() {
+        return commitEvery;
+    }
+
+    public void setCommitEvery(Integer commitEvery) {
+        this.commitEvery = commitEvery;
+    }
+
+    public Long getCommitEveryMs() {
+        return commitEveryMs;
+    }
+
+    public void setCommitEveryMs(Long commitEveryMs) {
+        this.commitEveryMs = commitEveryMs;
+    }
+
+    public String getPartitiontable() {
+        return partitiontable;
+    }
+
+    public void setPartitiontable(String partitiontable) {
+        this.partitiontable = partitiontable;
+    }
+
+    public String getIdcolumn() {
+        return idcolumn;
+    }
+
+    public void setIdcolumn(String idcolumn) {
+        this.idcolumn = idcolumn;
+    }
+
     //-----------------------------------------------------------------------------------------------------------------
 
     /**
@@ -116,15 +240,64 @@ public class MigrationIdRange extends AbstractMigration {
     }
 
 
+    /**
+     * Seek mode: find the next existing ID.
+     *
+     * @param seek  prepared {@link #seekexpr}, null when seek mode is off
+     * @param after the last ID of the empty step
+     * @return the next ID; null if there is none (or seek mode is off, see the caller)
+     */
+    @Nullable
+    protected Long seekNextId(PreparedStatement seek, long after) throws SQLException {
+        //note: the driver knows the parameters, "?" in literals is not counted
+        final int params = seek.getParameterMetaData().getParameterCount();
+        for (int i = 1; i <= params; i++) {
+            seek.setLong(i, after);
+        }
+        ResultSet rs = null;
+        try {
+            rs = seek.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            final long next = rs.getLong(1);
+            return rs.wasNull() ? null : next;
+        } finally {
+            DbUtils.close(null, rs);
+        }
+    }
+
     public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
         Connection connection = dbConn.getConnection(ctx);
+        if (partitiontable != null && executePartitions(dbConn, ctx, connection)) {
+            return;
+        }
 
         PreparedStatement st = null;
+        PreparedStatement seek = null;
+        MigrationProgress progress = null;
         try {
             //get ranges
-            Long lower = fetchRangeValue(ctx, connection, getFromid(), getFromidexpr());
-            Long upper = fetchRangeValue(ctx, connection, getToid(), getToidexpr());
+            long lower = fetchRangeValue(ctx, connection, getFromid(), getFromidexpr());
+            long upper = fetchRangeValue(ctx, connection, getToid(), getToidexpr());
+
+            final MigrationCheckpoint checkpoint = createCheckpoint(dbConn);
+            if (checkpoint != null) {
+                final String saved = checkpoint.load(connection);
+                if (saved != null) {
+                    try {
+                        lower = Math.max(lower, Long.parseLong(saved.trim()));
+                    } catch (NumberFormatException e) {
+                        throw new ApplyAlterException("invalid checkpoint of %s: %s", logid, saved);
+                    }
+                    ctx.report(STATEMENT_STEP, "resuming from checkpoint: %s", saved);
+                }
+            }
+            final Budget budget = createBudget();
+            final Throttle throttle = createThrottle(dbConn);
+            //size of the range; unknown if it overflows
+            progress = createProgress(dbConn, lower > upper ? 0 : Math.max(-1, upper - lower + 1));
 
             ProcessedQuery query = processQuery(getStatement(), REPLACEMENT);
             if (query.replacements < 1) {
@@ -133,40 +306,466 @@ public class MigrationIdRange extends AbstractMigration {
             }
 
             ctx.report(STATEMENT_STEP, "runnig query: %s", query.statement);
-            st = connection.prepareStatement(query.statement);
+            final AdaptiveStep step = createAdaptiveStep();
+            ctx.report(STATEMENT_STEP, " with IDs in range %d-%d, step %d%s", lower, upper, step.get(),
+                    step.isAdaptive() ? String.format(" (adaptive, target %d ms)", getTargetms()) : "");
 
-            final Long step = getStep();
-            ctx.report(STATEMENT_STEP, " with IDs in range %d-%d, step %d", lower, upper, step);
+            if (parallel != null && parallel > 1) {
+                final long totalChangedRows = executeParallel(dbConn, ctx, connection, query, lower, upper, step,
+                        budget, throttle, progress, checkpoint);
+                ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed", totalChangedRows);
+                return;
+            } else if (parallel != null && parallel < 1) {
+                throw new ApplyAlterException("invalid parallel value: %d", parallel);
+            }
 
+            st = connection.prepareStatement(query.statement);
+            if (seekexpr != null) {
+                ctx.report(STATEMENT_STEP, " seek query: %s", seekexpr);
+                seek = connection.prepareStatement(seekexpr);
+            }
+            final int group = commitEvery == null || commitEvery < 1 ? 1 : commitEvery;
+            if (group > 1 || commitEveryMs != null) {
+                ctx.report(STATEMENT_STEP, " commit every %d steps%s", group,
+                        commitEveryMs == null ? "" : String.format(" or %d ms", commitEveryMs));
+            }
             long totalChangedRows = 0;
-            for (long currentL = lower; currentL <= upper; currentL += step) {
-                final long currentH = Math.min(currentL + step - 1, upper);
-                //ctx.report( ReportLevel.DETAIL, "  step: BETWEEN %d AND %d", currentL, currentH );
-
-                //full the query
-                int stIdx = 1;
-                for (int i = 0; i < query.replacements; i++) {
-                    st.setLong(stIdx++, currentL);
-                    st.setLong(stIdx++, currentH);
+            long lastCommit = System.currentTimeMillis();
+            boolean uncommitted = false;
+            for (long currentL = lower; currentL <= upper; ) {
+                if (budget.isExhausted()) {
+                    if (uncommitted) {
+                        commitStep(ctx, connection);
+                    }
+                    //checkpoint (if any) has been saved by the previous step
+                    throw budgetExhausted(budget, checkpoint == null ? null : String.valueOf(currentL));
+                }
+                final long currentStep = step.get();
+                //group of consecutive steps, sent as one JDBC batch
+                int steps = 0;
+                long currentH;
+                long from = currentL;
+                while (true) {
+                    currentH = upper - from < currentStep ? upper : from + currentStep - 1;
+                    //full the query
+                    int stIdx = 1;
+                    for (int i = 0; i < query.replacements; i++) {
+                        st.setLong(stIdx++, from);
+                        st.setLong(stIdx++, currentH);
+                    }
+                    if (group > 1) {
+                        st.addBatch();
+                    }
+                    steps++;
+                    if (currentH == upper || steps >= group) {
+                        break;
+                    }
+                    from = currentH + 1;
                 }
                 //execute
-                final int changedRows = st.executeUpdate();
+                final long start = System.currentTimeMillis();
+                final int changedRows;
+                final boolean lastEmpty;
+                if (group > 1) {
+                    final int[] counts = st.executeBatch();
+                    int sum = 0;
+                    for (int count : counts) {
+                        //SUCCESS_NO_INFO is negative
+                        sum += Math.max(0, count);
+                    }
+                    changedRows = sum;
+                    lastEmpty = counts.length > 0 && counts[counts.length - 1] == 0;
+                } else {
+                    changedRows = st.executeUpdate();
+                    lastEmpty = changedRows == 0;
+                }
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration / steps);
                 ctx.report(ReportLevel.DETAIL, "  step %d-%d of %d finished, %d rows changed",
                         currentL, currentH, upper, changedRows);
+                if (checkpoint != null && currentH < upper) {
+                    checkpoint.save(connection, String.valueOf(currentH + 1));
+                }
                 //commit
-                commitStep(ctx, connection);
+                final long now = System.currentTimeMillis();
+                if (commitEveryMs == null || now - lastCommit >= commitEveryMs || currentH == upper) {
+                    commitStep(ctx, connection);
+                    lastCommit = now;
+                    uncommitted = false;
+                } else {
+                    uncommitted = true;
+                }
+                budget.blocksDone(steps);
+                progress.batch(ctx, currentL + "-" + currentH, currentH - currentL + 1, changedRows, duration);
+                if (!uncommitted) {
+                    //the probe must not roll back uncommitted steps
+                    throttle.pause(ctx, connection, step, changedRows);
+                }
 
                 totalChangedRows += changedRows;
+                if (currentH == upper) {
+                    break;
+                }
+                currentL = currentH + 1;
+                if (lastEmpty && seek != null) {
+                    final Long next = seekNextId(seek, currentH);
+                    if (next == null || next > upper) {
+                        ctx.report(ReportLevel.DETAIL, "  no more IDs after %d", currentH);
+                        progress.skipped(upper - currentH);
+                        break;
+                    } else if (next > currentL) {
+                        ctx.report(ReportLevel.DETAIL, "  skipping to %d", next);
+                        progress.skipped(next - currentL);
+                        currentL = next;
+                    }
+                }
+            }
+            if (uncommitted && checkpoint == null) {
+                commitStep(ctx, connection);
             }
+            finishCheckpoint(ctx, connection, checkpoint);
 
             ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed", totalChangedRows);
         } finally {
             DbUtils.close(st);
+            DbUtils.close(seek);
+            if (progress != null) {
+                progress.finish(ctx);
+            }
+        }
+
+    }
+
+    /**
+     * Migration has finished: remove the checkpoint.
+     */
+    private void finishCheckpoint(RunContext ctx, Connection connection, MigrationCheckpoint checkpoint)
+            throws SQLException {
+        if (checkpoint != null) {
+            checkpoint.clear(connection);
+            commitStep(ctx, connection);
+        }
+    }
+
+    /**
+     * Parallel mode: the range is split by {@link RangeChunks} (using column statistics if configured) and processed
+     * by {@link #parallel} workers, each with its own connection (see {@link DbInstance#createSessionWorker}).
+     * Every worker commits its steps independently; the first failure stops all workers.
+     * When the budget is exhausted, the workers finish their current steps.
+     * <p/>
+     * With checkpoint, every worker saves {@link RangeChunks#getCommittedWatermark()} (the lowest ID not processed
+     * yet, including the steps of other workers still in flight) after its step is committed, so a run killed
+     * at any moment continues from there.
+     *
+     * @return total number of changed rows
+     */
+    protected long executeParallel(final DbInstance dbConn, final RunContext ctx, Connection connection,
+                                   final ProcessedQuery query, long lower, long upper, final AdaptiveStep step,
+                                   final Budget budget, final Throttle throttle,
+                                   final MigrationProgress progress, final MigrationCheckpoint checkpoint)
+            throws SQLException {
+        //workers must not wait for locks held by the previous statements of this alterscript
+        commitStep(ctx, connection);
+
+        List<Long> bounds = Collections.emptyList();
+        if (statstable != null && statscolumn != null) {
+            try {
+                bounds = dbConn.loadKeyQuantiles(connection, statstable, statscolumn);
+                ctx.report(STATEMENT_STEP, " %d boundaries found in statistics of %s.%s",
+                        bounds.size(), statstable, statscolumn);
+            } catch (SQLException e) {
+                ctx.report(ReportLevel.DETAIL, " statistics of %s.%s not available: %s",
+                        statstable, statscolumn, e.getMessage());
+            } finally {
+                connection.rollback();
+            }
+        }
+        final RangeChunks chunks = new RangeChunks(lower, upper, parallel, bounds);
+        ctx.report(STATEMENT_STEP, " %d workers, %d segments", parallel, chunks.getSegmentCount());
+
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong saved = new AtomicLong(lower);
+        runWorkers(dbConn, ctx, parallel, "applyalter-range-", new Worker() {
+            public void run(int workerNum, DbInstance worker, AtomicBoolean stop) throws SQLException {
+                runWorker(workerNum, worker, ctx, query, chunks, step, budget, throttle, progress, total, stop,
+                        checkpoint, saved);
+            }
+        });
+
+        final Long next = chunks.getCommittedWatermark();
+        if (next != null) {
+            //stopped by budget; checkpoint (if any) has been saved by the workers
+            throw budgetExhausted(budget, checkpoint == null ? null : String.valueOf(next));
+        }
+        finishCheckpoint(ctx, connection, checkpoint);
+        return total.get();
+    }
+
+    /**
+     * Body of single worker thread. The run context is shared, so every report is synchronized on it.
+     */
+    private void runWorker(int workerNum, DbInstance worker, RunContext ctx, ProcessedQuery query,
+                           RangeChunks chunks, AdaptiveStep step, Budget budget, Throttle throttle,
+                           MigrationProgress progress, AtomicLong total, AtomicBoolean stop,
+                           MigrationCheckpoint checkpoint, AtomicLong saved)
+            throws SQLException {
+        final Connection c = worker.getConnection(ctx);
+        final PreparedStatement st = c.prepareStatement(query.statement);
+        final PreparedStatement seek = seekexpr == null ? null : c.prepareStatement(seekexpr);
+        try {
+            int segment = -1;
+            RangeChunks.Claim claim;
+            while (!stop.get() && !budget.isExhausted() && (claim = chunks.next(segment, step.get())) != null) {
+                segment = claim.getSegment();
+                int stIdx = 1;
+                for (int i = 0; i < query.replacements; i++) {
+                    st.setLong(stIdx++, claim.getFrom());
+                    st.setLong(stIdx++, claim.getTo());
+                }
+                final long start = System.currentTimeMillis();
+                final int changedRows = st.executeUpdate();
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration);
+                commitStep(ctx, c);
+                chunks.done(claim);
+                budget.blockDone();
+                progress.batch(ctx, claim.getFrom() + "-" + claim.getTo(), claim.getTo() - claim.getFrom() + 1,
+                        changedRows, duration);
+                final long sum = total.addAndGet(changedRows);
+                synchronized (ctx) {
+                    ctx.report(ReportLevel.DETAIL, "  worker %d: step %d-%d finished, %d rows changed, total %d",
+                            workerNum, claim.getFrom(), claim.getTo(), changedRows, sum);
+                }
+                if (changedRows == 0 && seek != null) {
+                    progress.skipped(chunks.skipTo(segment, seekNextId(seek, claim.getTo())));
+                    //do not keep the read transaction open
+                    c.rollback();
+                }
+                if (checkpoint != null) {
+                    saveWatermark(ctx, c, chunks, checkpoint, saved);
+                }
+                throttle.pause(ctx, c, step, changedRows);
+            }
+        } finally {
+            DbUtils.close(st);
+            DbUtils.close(seek);
+        }
+    }
+
+    /**
+     * Save the committed watermark of parallel workers, if it has advanced. The saves are serialized (including
+     * the commit), so the checkpoint never moves back.
+     *
+     * @param saved the last saved position
+     */
+    private void saveWatermark(RunContext ctx, Connection c, RangeChunks chunks, MigrationCheckpoint checkpoint,
+                               AtomicLong saved)
+            throws SQLException {
+        synchronized (checkpoint) {
+            final Long mark = chunks.getCommittedWatermark();
+            if (mark != null && mark > saved.get()) {
+                checkpoint.save(c, String.valueOf(mark));
+                commitStep(ctx, c);
+                saved.set(mark);
+            }
+        }
+    }
+
+    /**
+     * Partition mode: the partitions of {@link #partitiontable} (see {@link DbInstance#getPartitionsSql()}) are
+     * processed one by one, every one with its own bounds (min and max of {@link #idcolumn} in the partition,
+     * limited by {@link #fromid} and {@link #toid} if set), adaptive step and progress. With {@link #parallel},
+     * several partitions are processed at once by separate worker connections.
+     * <p/>
+     * Every step must touch only its partition: the ID ranges of partitions overlap when the table is not
+     * partitioned by the ID. Where partitions are tables (PostgreSQL), the statement must address the partition
+     * by {@link #PARTITION_PLACEHOLDER}; otherwise (DB2), the range condition is extended by
+     * {@link DbInstance#makePartitionCondition}.
+     *
+     * @return false if the table has no partitions (the migration should continue as usual)
+     */
+    protected boolean executePartitions(final DbInstance dbConn, final RunContext ctx, Connection connection)
+            throws SQLException {
+        if (idcolumn == null)
+            throw new ApplyAlterException("invalid apply script: \"partitiontable\" requires \"idcolumn\" for " + this);
+        if (checkpoint != null && checkpoint)
+            throw new ApplyAlterException("invalid apply script: \"checkpoint\" is not supported with"
+                    + " \"partitiontable\" for " + this);
+        if (parallel != null && parallel < 1) {
+            throw new ApplyAlterException("invalid parallel value: %d", parallel);
+        }
+        final String sql = dbConn.getPartitionsSql();
+        if (sql == null) {
+            throw new ApplyAlterException("partitions are not supported by %s", dbConn.getEngine());
+        }
+        if (processQuery(getStatement(), REPLACEMENT).replacements < 1) {
+            throw new ApplyAlterException("invalid query (missing %s placeholder): %s", getPlaceholder(), getStatement());
+        }
+        if (dbConn.makePartitionCondition("0", idcolumn) == null && !getStatement().contains(PARTITION_PLACEHOLDER)) {
+            throw new ApplyAlterException("invalid apply script: statement must address the partition by %s"
+                    + " with \"partitiontable\" on %s: %s", PARTITION_PLACEHOLDER, dbConn.getEngine(), getStatement());
+        }
+        //workers must not wait for locks held by the previous statements of this alterscript
+        commitStep(ctx, connection);
+
+        final Queue<String[]> partitions = new ConcurrentLinkedQueue<String[]>();
+        final int dot = partitiontable.lastIndexOf('.');
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = connection.prepareStatement(sql);
+            st.setString(1, dot < 0 ? null : partitiontable.substring(0, dot).trim());
+            st.setString(2, partitiontable.substring(dot + 1).trim());
+            rs = st.executeQuery();
+            while (rs.next()) {
+                partitions.add(new String[]{rs.getString(1), rs.getString(2)});
+            }
+        } finally {
+            DbUtils.close(st, rs);
+            connection.rollback();
         }
+        if (partitions.isEmpty()) {
+            ctx.report(STATEMENT_STEP, "no partitions of %s found, processing it as single table", partitiontable);
+            return false;
+        }
+
+        final long lowerLimit = fromid == null && fromidexpr == null ? Long.MIN_VALUE
+                : fetchRangeValue(ctx, connection, fromid, fromidexpr);
+        final long upperLimit = toid == null && toidexpr == null ? Long.MAX_VALUE
+                : fetchRangeValue(ctx, connection, toid, toidexpr);
+        connection.rollback();
+        final int workers = parallel == null ? 1 : Math.min(parallel, partitions.size());
+        ctx.report(STATEMENT_STEP, "running query: %s", getStatement());
+        ctx.report(STATEMENT_STEP, " %d partitions of %s, %d workers", partitions.size(), partitiontable, workers);
+
+        final Budget budget = createBudget();
+        final Throttle throttle = createThrottle(dbConn);
+        final AtomicLong total = new AtomicLong();
+        final AtomicBoolean exhausted = new AtomicBoolean();
+        if (workers > 1) {
+            runWorkers(dbConn, ctx, workers, "applyalter-partition-", new Worker() {
+                public void run(int workerNum, DbInstance worker, AtomicBoolean stop) throws SQLException {
+                    runPartitions(worker, ctx, partitions, lowerLimit, upperLimit, budget, throttle, total, stop,
+                            exhausted);
+                }
+            });
+        } else {
+            runPartitions(dbConn, ctx, partitions, lowerLimit, upperLimit, budget, throttle, total,
+                    new AtomicBoolean(), exhausted);
+        }
+        if (exhausted.get()) {
+            throw budgetExhausted(budget, null);
+        }
+        ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed", total.get());
+        return true;
+    }
+
+    /**
+     * Process partitions from the queue until it is empty.
+     */
+    private void runPartitions(DbInstance d, RunContext ctx, Queue<String[]> partitions, long lowerLimit,
+                               long upperLimit, Budget budget, Throttle throttle, AtomicLong total,
+                               AtomicBoolean stop, AtomicBoolean exhausted)
+            throws SQLException {
+        final Connection c = d.getConnection(ctx);
+        String[] partition;
+        while (!stop.get() && (partition = partitions.poll()) != null) {
+            if (budget.isExhausted()) {
+                exhausted.set(true);
+                return;
+            }
+            final String name = partition[1];
+
+            //bounds of the partition
+            Long min = null;
+            Long max = null;
+            PreparedStatement st = null;
+            ResultSet rs = null;
+            try {
+                st = c.prepareStatement(d.makePartitionBoundsSql(partitiontable, partition[0], idcolumn));
+                rs = st.executeQuery();
+                if (rs.next()) {
+                    min = rs.getLong(1);
+                    max = rs.wasNull() ? null : rs.getLong(2);
+                }
+            } finally {
+                DbUtils.close(st, rs);
+                c.rollback();
+            }
+            if (max == null || Math.max(min, lowerLimit) > Math.min(max, upperLimit)) {
+                synchronized (ctx) {
+                    ctx.report(ReportLevel.DETAIL, "  partition %s: nothing to migrate", name);
+                }
+                continue;
+            }
+            final long lower = Math.max(min, lowerLimit);
+            final long upper = Math.min(max, upperLimit);
 
+            final String condition = d.makePartitionCondition(partition[0], idcolumn);
+            final ProcessedQuery query = processQuery(
+                    getStatement().replace(PARTITION_PLACEHOLDER, d.getPartitionTarget(partitiontable, partition[0])),
+                    condition == null ? REPLACEMENT : REPLACEMENT + " and " + condition);
+            final AdaptiveStep step = createAdaptiveStep();
+            final MigrationProgress progress = createProgress(d, Math.max(-1, upper - lower + 1), name);
+            synchronized (ctx) {
+                ctx.report(STATEMENT_STEP, " partition %s: IDs in range %d-%d, step %d", name, lower, upper,
+                        step.get());
+            }
+            long changed = 0;
+            try {
+                st = c.prepareStatement(query.statement);
+                for (long from = lower; !stop.get(); ) {
+                    if (budget.isExhausted()) {
+                        exhausted.set(true);
+                        break;
+                    }
+                    final long to = upper - from < step.get() ? upper : from + step.get() - 1;
+                    int stIdx = 1;
+                    for (int i = 0; i < query.replacements; i++) {
+                        st.setLong(stIdx++, from);
+                        st.setLong(stIdx++, to);
+                    }
+                    final long start = System.currentTimeMillis();
+                    final int changedRows = st.executeUpdate();
+                    final long duration = System.currentTimeMillis() - start;
+                    step.update(ctx, duration);
+                    commitStep(ctx, c);
+                    budget.blockDone();
+                    progress.batch(ctx, from + "-" + to, to - from + 1, changedRows, duration);
+                    changed += changedRows;
+                    synchronized (ctx) {
+                        ctx.report(ReportLevel.DETAIL, "  partition %s: step %d-%d finished, %d rows changed",
+                                name, from, to, changedRows);
+                    }
+                    throttle.pause(ctx, c, step, changedRows);
+                    if (to == upper) {
+                        break;
+                    }
+                    from = to + 1;
+                }
+            } finally {
+                progress.finish(ctx);
+                DbUtils.close(st);
+            }
+            total.addAndGet(changed);
+            synchronized (ctx) {
+                ctx.report(STATEMENT_STEP, " partition %s finished, %d rows changed", name, changed);
+            }
+            if (exhausted.get()) {
+                return;
+            }
+        }
     }
 
     //-----------------------------------------------------------------------------------------------------------------
+    @Override
+    public TableFootprint getTableFootprint() {
+        return super.getTableFootprint()
+                .merge(seekexpr == null ? TableFootprint.NONE : TableFootprint.analyze(seekexpr))
+                .merge(TableFootprint.analyzeExpression(fromidexpr))
+                .merge(TableFootprint.analyzeExpression(toidexpr));
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
@@ -177,6 +776,30 @@ public class MigrationIdRange extends AbstractMigration {
         b.append("fromid: ").append(fromid).append('/').append(fromidexpr).append("\n");
         b.append("toid: ").append(toid).append('/').append(toidexpr).append("\n");
         b.append("step: ").append(step).append("\n");
+        if (parallel != null) {
+            b.append("parallel: ").append(parallel).append("\n");
+        }
+        if (targetms != null) {
+            b.append("targetms: ").append(targetms).append("\n");
+        }
+        if (seekexpr != null) {
+            b.append("seekexpr: ").append(seekexpr).append("\n");
+        }
+        if (commitEvery != null) {
+            b.append("commit-every: ").append(commitEvery).append("\n");
+        }
+        if (commitEveryMs != null) {
+            b.append("commit-every-ms: ").append(commitEveryMs).append("\n");
+        }
+        if (maxseconds != null) {
+            b.append("maxseconds: ").append(maxseconds).append("\n");
+        }
+        if (checkpoint != null) {
+            b.append("checkpoint: ").append(checkpoint).append("\n");
+        }
+        if (partitiontable != null) {
+            b.append("partitiontable: ").append(partitiontable).append(" (").append(idcolumn).append(")\n");
+        }
         b.append("description: ").append(description).append("\n");
         return b.toString();
     }
@@ -0,0 +1,319 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static ch.ips.g2.applyalter.ReportLevel.DETAIL;
+import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
+
+/**
+ * Migration walking the table in key order ("keyset pagination"): every page is found by query
+ * <code>select keys from table where keys &gt; (last key) order by keys fetch first N rows only</code>
+ * and the statement is executed for keys between the last key of the previous page (exclusive) and the last
+ * key of this page (inclusive). Unlike {@link MigrationIdRange}, it supports composite and non-integer keys;
+ * unlike {@link MigrationIdList}, no temporary tables are needed.
+ * <p/>
+ * The placeholder ({@link #DEFAULT_PLACEHOLDER} by default) is replaced by the key condition.
+ * Key columns should be covered by an index (usually the primary key).
+ */
+@XStreamAlias("migration-keyset")
+public class MigrationKeyset extends AbstractMigration {
+    public static final String DEFAULT_PLACEHOLDER = "KEYSET_RANGE";
+
+    /**
+     * Table to walk, optionally with schema.
+     */
+    private String table;
+    /**
+     * Key columns, delimited by commas.
+     */
+    private String keycolumns;
+    /**
+     * Optional condition limiting the walked rows.
+     */
+    private String filter;
+
+    @Override
+    protected String getDefaultPlaceholder() {
+        return DEFAULT_PLACEHOLDER;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    public String getKeycolumns() {
+        return keycolumns;
+    }
+
+    public void setKeycolumns(String keycolumns) {
+        this.keycolumns = keycolumns;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Check validity of this statement; raise exception if the alterscript is invalid.
+     *
+     * @throws ApplyAlterException invalid statement, invalid alterscript
+     */
+    public void checkParameters() {
+        if (statement == null)
+            throw new ApplyAlterException("invalid apply script: missing \"statement\" for " + this);
+        if (table == null)
+            throw new ApplyAlterException("invalid apply script: missing \"table\" for " + this);
+        if (keycolumns == null || getKeyColumns().length == 0)
+            throw new ApplyAlterException("invalid apply script: missing \"keycolumns\" for " + this);
+        if (step == null || step.longValue() < 1)
+            throw new ApplyAlterException("invalid apply script: missing or invalid \"step\" for " + this);
+    }
+
+    protected String[] getKeyColumns() {
+        final List<String> columns = new ArrayList<String>();
+        for (String c : keycolumns.split(",")) {
+            if (c.trim().length() > 0) {
+                columns.add(c.trim());
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Key condition: SQL fragment and the order of key values to bind.
+     */
+    protected static class KeyCondition {
+        final String sql;
+        /**
+         * Index of key column for every parameter.
+         */
+        final List<Integer> params;
+
+        KeyCondition(String sql, List<Integer> params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Compare key columns with a key: <code>(k1,k2) &gt; (?,?)</code> or <code>(k1,k2) &lt;= (?,?)</code>.
+     *
+     * @param columns  key columns
+     * @param greater  true = greater than the key, false = less than or equal to the key
+     * @param rowValue use row value comparison; otherwise, the comparison is expanded to
+     *                 <code>k1 &gt; ? or (k1 = ? and k2 &gt; ?)</code>, which works on every database
+     */
+    protected static KeyCondition makeKeyCondition(String[] columns, boolean greater, boolean rowValue) {
+        final List<Integer> params = new ArrayList<Integer>();
+        final String strict = greater ? ">" : "<";
+        final String last = greater ? ">" : "<=";
+        final StringBuilder b = new StringBuilder("(");
+        if (rowValue || columns.length == 1) {
+            final StringBuilder values = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                b.append(i == 0 ? "" : ",").append(columns[i]);
+                values.append(i == 0 ? "?" : ",?");
+                params.add(i);
+            }
+            if (columns.length > 1) {
+                b.insert(1, '(').append(')');
+                values.insert(0, '(').append(')');
+            }
+            b.append(' ').append(last).append(' ').append(values);
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                b.append(i == 0 ? "(" : " or (");
+                for (int j = 0; j < i; j++) {
+                    b.append(columns[j]).append(" = ? and ");
+                    params.add(j);
+                }
+                b.append(columns[i]).append(' ').append(i == columns.length - 1 ? last : strict).append(" ?)");
+                params.add(i);
+            }
+        }
+        return new KeyCondition(b.append(')').toString(), params);
+    }
+
+    private static void bindKey(PreparedStatement st, int offset, KeyCondition condition, Object[] key)
+            throws SQLException {
+        for (int i = 0; i < condition.params.size(); i++) {
+            st.setObject(offset + i + 1, key[condition.params.get(i)]);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        checkParameters();
+        final Connection connection = dbConn.getConnection(ctx);
+        final String[] columns = getKeyColumns();
+        final String columnList = keycolumns.trim();
+        final boolean rowValue = dbConn.isRowValueComparisonSupported();
+        final KeyCondition after = makeKeyCondition(columns, true, rowValue);
+        final KeyCondition upTo = makeKeyCondition(columns, false, rowValue);
+
+        //statement for the first page has no lower bound
+        final ProcessedQuery firstQuery = processQuery(getStatement(), upTo.sql);
+        final ProcessedQuery query = processQuery(getStatement(), String.format("(%s and %s)", after.sql, upTo.sql));
+        if (query.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s",
+                    getPlaceholder() == null ? getDefaultPlaceholder() : getPlaceholder(), this.toString());
+        }
+        final String where = filter == null ? "" : String.format("(%s) and ", filter);
+
+        final AdaptiveStep step = createAdaptiveStep();
+        final Budget budget = createBudget();
+        final Throttle throttle = createThrottle(dbConn);
+        ctx.report(STATEMENT_STEP, "running query: %s", query.statement);
+        ctx.report(STATEMENT_STEP, " walking %s by keys (%s), step %d", table, columnList, step.get());
+
+        PreparedStatement stFirstPage = null;
+        PreparedStatement stPage = null;
+        PreparedStatement stFirst = null;
+        PreparedStatement stMain = null;
+        long preparedStep = 0;
+        final MigrationProgress progress = createProgress(dbConn, -1);
+        try {
+            stFirst = connection.prepareStatement(firstQuery.statement);
+            stMain = connection.prepareStatement(query.statement);
+
+            Object[] lastKey = null;
+            long pageCount = 0;
+            long updatedCount = 0;
+            long processedCount = 0;
+            while (true) {
+                if (budget.isExhausted()) {
+                    throw budgetExhausted(budget, null);
+                }
+                if (step.get() != preparedStep) {
+                    //first page, or adaptive step has changed
+                    preparedStep = step.get();
+                    DbUtils.close(stFirstPage);
+                    DbUtils.close(stPage);
+                    stFirstPage = null;
+                    stPage = null;
+                    stFirstPage = connection.prepareStatement(dbConn.makeFirstRowsSql(String.format(
+                            "select %s from %s where %s1=1 order by %s", columnList, table, where, columnList),
+                            preparedStep));
+                    stPage = connection.prepareStatement(dbConn.makeFirstRowsSql(String.format(
+                            "select %s from %s where %s%s order by %s", columnList, table, where, after.sql,
+                            columnList), preparedStep));
+                }
+
+                //find the page
+                final PreparedStatement pageSt = lastKey == null ? stFirstPage : stPage;
+                if (lastKey != null) {
+                    bindKey(pageSt, 0, after, lastKey);
+                }
+                Object[] pageKey = null;
+                int keyCount = 0;
+                ResultSet rs = null;
+                try {
+                    rs = pageSt.executeQuery();
+                    while (rs.next()) {
+                        keyCount++;
+                        pageKey = new Object[columns.length];
+                        for (int i = 0; i < columns.length; i++) {
+                            pageKey[i] = rs.getObject(i + 1);
+                        }
+                    }
+                } finally {
+                    DbUtils.close(null, rs);
+                }
+                if (pageKey == null) {
+                    break;
+                }
+                pageCount++;
+
+                //execute the statement for the page
+                final PreparedStatement st = lastKey == null ? stFirst : stMain;
+                final ProcessedQuery q = lastKey == null ? firstQuery : query;
+                int offset = 0;
+                for (int r = 0; r < q.replacements; r++) {
+                    if (lastKey != null) {
+                        bindKey(st, offset, after, lastKey);
+                        offset += after.params.size();
+                    }
+                    bindKey(st, offset, upTo, pageKey);
+                    offset += upTo.params.size();
+                }
+                final long start = System.currentTimeMillis();
+                final int updated = st.executeUpdate();
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration);
+                updatedCount += updated;
+                processedCount += keyCount;
+
+                ctx.report(DETAIL, "  page %d up to %s: %d of %d updated",
+                        pageCount, Arrays.toString(pageKey), updated, keyCount);
+                commitStep(ctx, connection);
+                budget.blockDone();
+                progress.batch(ctx, Arrays.toString(pageKey), keyCount, updated, duration);
+
+                if (keyCount < preparedStep) {
+                    //the last page
+                    break;
+                }
+                throttle.pause(ctx, connection, step, updated);
+                lastKey = pageKey;
+            }
+
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated in %d pages (%d keys processed)",
+                    updatedCount, pageCount, processedCount);
+        } finally {
+            progress.finish(ctx);
+            DbUtils.close(stFirstPage);
+            DbUtils.close(stPage);
+            DbUtils.close(stFirst);
+            DbUtils.close(stMain);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+    @Override
+    public TableFootprint getTableFootprint() {
+        if (table == null) {
+            return TableFootprint.UNKNOWN;
+        }
+        return super.getTableFootprint().merge(TableFootprint.analyzeExpression(String.format("select %s from %s%s",
+                keycolumns, table, filter == null ? "" : " where " + filter)));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(this.getClass().getSimpleName()).append(": ");
+        b.append("logid: ").append(logid).append("\n");
+        b.append("statement:").append(" ").append(statement).append("\n");
+        b.append("table: ").append(table).append("\n");
+        b.append("keycolumns: ").append(keycolumns).append("\n");
+        if (filter != null) {
+            b.append("filter: ").append(filter).append("\n");
+        }
+        b.append("step: ").append(step).append("\n");
+        b.append("description: ").append(description).append("\n");
+        return b.toString();
+    }
+}
@@ -12,6 +12,12 @@ import java.util.Map;
  * Migration script, which wouldnt fit to one transaction
  * database/alter2/b_7.1/nas_7.1/alter-common_fn.sql
  * database/alter2/b_7.3/nas_7.3.1/alter-common_fn.sql
+ * <p/>
+ * The stored procedures <code>g2fn.blockupdate(_ft)</code> are not needed anymore: the migration is executed
+ * by the client-side engines, {@link MigrationIdRange} for blockupdate_ft (ID range) and {@link RepeatBatch}
+ * for blockupdate (statement repeated until it changes no rows), with {@link #maxblkcnt} as the limit of blocks
+ * of single run. The range is checkpointed by {@link #logid}, so every run continues where the previous one has
+ * stopped. The procedure is called only with {@link #procedure} set.
  *
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
@@ -25,6 +31,10 @@ public class MigrationProc extends AbstractMigration {
     private String fromidexpr;
     private Long toid;
     private String toidexpr;
+    /**
+     * Call the stored procedure instead of the client-side engine.
+     */
+    private Boolean procedure;
 
     public MigrationProc() {
         super();
@@ -124,6 +134,10 @@ public class MigrationProc extends AbstractMigration {
 
     public void execute(DbInstance dbConn, RunContext mode, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
+        if (procedure == null || !procedure) {
+            createEngine().execute(dbConn, mode, datafiles);
+            return;
+        }
         Connection connection = dbConn.getConnection(mode);
 
         PreparedStatement st = null;
@@ -136,6 +150,32 @@ public class MigrationProc extends AbstractMigration {
 
     }
 
+    /**
+     * Create client-side engine executing this migration with the same parameters.
+     *
+     * @throws IllegalArgumentException if any of required parameter is missing
+     */
+    protected AbstractMigration createEngine() {
+        final AbstractMigration engine;
+        if (isFt()) {
+            final MigrationIdRange range = new MigrationIdRange();
+            range.setFromid(fromid);
+            range.setFromidexpr(fromidexpr);
+            range.setToid(toid);
+            range.setToidexpr(toidexpr);
+            range.setStep(step);
+            range.setPlaceholder(getPlaceholder());
+            //maxblkcnt splits the range into several runs
+            range.setCheckpoint(true);
+            engine = range;
+        } else {
+            engine = new RepeatBatch();
+        }
+        copySettings(engine);
+        engine.setStatement(statement);
+        return engine;
+    }
+
     //-----------------------------------------------------------------------------------------------------------------
     //-----------------------------------------------------------------------------------------------------------------
 
@@ -188,11 +228,31 @@ public class MigrationProc extends AbstractMigration {
         this.toidexpr = toidexpr;
     }
 
+    public Boolean getProcedure() {
+        return procedure;
+    }
+
+    public void setProcedure(Boolean procedure) {
+        this.procedure = procedure;
+    }
+
+    @Override
+    public TableFootprint getTableFootprint() {
+        if (procedure != null && procedure) {
+            //the statement is executed by stored procedure, which has its own side effects
+            return TableFootprint.UNKNOWN;
+        }
+        return super.getTableFootprint()
+                .merge(TableFootprint.analyzeExpression(fromidexpr))
+                .merge(TableFootprint.analyzeExpression(toidexpr));
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
         b.append(this.getClass().getSimpleName()).append(": ");
-        b.append(getSqlStatement()).append(" ").append(statement).append("\n");
+        b.append(procedure != null && procedure ? getSqlStatement() : "blockupdate").append(" ").append(statement)
+                .append("\n");
         b.append("logid: ").append(logid).append("\n");
         b.append("maxblkcnt: ").append(maxblkcnt).append("\n");
         b.append("description: ").append(description).append("\n");
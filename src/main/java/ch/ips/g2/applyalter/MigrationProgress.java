@@ -0,0 +1,267 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Progress of batch migration: throughput (rows and batches per second), batch latency percentiles and ETA,
+ * reported as "progress" into the structured log every {@link AbstractMigration#getProgressms() interval}
+ * and at the end. ETA is known only when the total amount of work (size of ID range, number of IDs) is known.
+ * <p/>
+ * Batch durations are counted in a fixed-size log-linear histogram (exact below {@link #EXACT_MS} ms, relative
+ * error about 3 % above), so the memory and the cost of a report do not grow with the number of batches.
+ * <p/>
+ * Optionally, every batch is written as one JSON line into trace file (appended; lines of all migrations
+ * and database instances are written under common lock).
+ * <p/>
+ * Thread safe: one instance is shared by parallel workers. Partition-aware migrations create one instance
+ * per partition ({@link #unit}).
+ */
+class MigrationProgress {
+    private static final Object TRACE_LOCK = new Object();
+    /**
+     * Durations below this are counted exactly.
+     */
+    static final int EXACT_MS = 64;
+    /**
+     * Sub-buckets of every power of two above {@link #EXACT_MS}.
+     */
+    private static final int SUB_BITS = 5;
+    static final int BUCKETS = EXACT_MS + (63 - 6) * (1 << SUB_BITS);
+
+    private final String logid;
+    private final String instance;
+    /**
+     * Part of the migration tracked by this instance (partition); null = whole migration.
+     */
+    @Nullable
+    private final String unit;
+    private final long total;
+    private final long intervalMs;
+    private final long startMs;
+    @Nullable
+    private final Writer trace;
+
+    private long lastReportMs;
+    private long batches;
+    private long rows;
+    private long processed;
+    private final long[] durations = new long[BUCKETS];
+    private long maxDuration;
+
+    /**
+     * @param logid      logid of the migration, used in the trace
+     * @param instance   database instance id, used in the trace
+     * @param total      total amount of work (IDs in range, number of IDs); negative = unknown
+     * @param intervalMs report interval; zero or negative = report only at the end
+     * @param traceFile  JSONL trace file; null = no trace
+     */
+    public MigrationProgress(String logid, String instance, long total, long intervalMs,
+                             @Nullable String traceFile) {
+        this(logid, instance, null, total, intervalMs, traceFile);
+    }
+
+    /**
+     * @param unit part of the migration (partition), reported and written to the trace; null = whole migration
+     */
+    public MigrationProgress(String logid, String instance, @Nullable String unit, long total, long intervalMs,
+                             @Nullable String traceFile) {
+        this.logid = logid;
+        this.instance = instance;
+        this.unit = unit;
+        this.total = total;
+        this.intervalMs = intervalMs;
+        this.startMs = System.currentTimeMillis();
+        this.lastReportMs = startMs;
+        if (traceFile == null) {
+            this.trace = null;
+        } else {
+            try {
+                this.trace = new OutputStreamWriter(new FileOutputStream(traceFile, true), "UTF-8");
+            } catch (IOException e) {
+                throw new ApplyAlterException("cannot open trace file %s: %s", e, traceFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Record finished batch; report the progress if the interval has elapsed.
+     *
+     * @param ctx        run context
+     * @param position   position of the batch (range, key), written to the trace
+     * @param processed  amount of work done by the batch (IDs of the range, number of IDs)
+     * @param rows       number of changed rows
+     * @param durationMs duration of the batch
+     */
+    public void batch(RunContext ctx, String position, long processed, long rows, long durationMs) {
+        final long now = System.currentTimeMillis();
+        final long batch;
+        final boolean report;
+        synchronized (this) {
+            durations[bucket(durationMs)]++;
+            maxDuration = Math.max(maxDuration, durationMs);
+            batch = ++batches;
+            this.rows += rows;
+            this.processed += processed;
+            report = intervalMs > 0 && now - lastReportMs >= intervalMs;
+            if (report) {
+                lastReportMs = now;
+            }
+        }
+        if (trace != null) {
+            writeTrace(String.format("{\"logid\":%s,\"instance\":%s,%s\"batch\":%d,\"position\":%s,"
+                            + "\"processed\":%d,\"rows\":%d,\"ms\":%d,\"at\":%d}\n",
+                    quote(logid), quote(instance), unit == null ? "" : "\"unit\":" + quote(unit) + ",",
+                    batch, quote(position), processed, rows, durationMs, now));
+        }
+        if (report) {
+            report(ctx);
+        }
+    }
+
+    /**
+     * Part of the work has been skipped (for example, sparse IDs in seek mode).
+     */
+    public synchronized void skipped(long processed) {
+        this.processed += processed;
+    }
+
+    /**
+     * Migration has ended: report the final numbers and close the trace.
+     */
+    public void finish(RunContext ctx) {
+        try {
+            report(ctx);
+        } finally {
+            if (trace != null) {
+                try {
+                    trace.close();
+                } catch (IOException e) {
+                    ctx.report(ReportLevel.DETAIL, "failed to close trace file: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void report(final RunContext ctx) {
+        final long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+        final long batches;
+        final long rows;
+        final long processed;
+        final long[] histogram;
+        final long max;
+        synchronized (this) {
+            batches = this.batches;
+            rows = this.rows;
+            processed = this.processed;
+            histogram = durations.clone();
+            max = maxDuration;
+        }
+        final Long etaSec = total < 0 || processed == 0 ? null
+                : (long) ((double) Math.max(0, total - processed) * elapsedMs / processed / 1000);
+        synchronized (ctx) {
+            ctx.subreport("progress", new Runnable() {
+                public void run() {
+                    if (unit != null) {
+                        ctx.reportProperty(ReportLevel.STATEMENT_STEP, "unit", unit);
+                    }
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "batches", batches);
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "rows", rows);
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "processed", processed);
+                    if (total >= 0) {
+                        ctx.reportProperty(ReportLevel.STATEMENT_STEP, "total", total);
+                    }
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "rows-per-sec", rows * 1000 / elapsedMs);
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "batches-per-sec",
+                            String.format("%.2f", batches * 1000.0 / elapsedMs));
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "p50-ms", Math.min(max, percentile(histogram, batches, 50)));
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "p95-ms", Math.min(max, percentile(histogram, batches, 95)));
+                    ctx.reportProperty(ReportLevel.STATEMENT_STEP, "p99-ms", Math.min(max, percentile(histogram, batches, 99)));
+                    if (etaSec != null) {
+                        ctx.reportProperty(ReportLevel.STATEMENT_STEP, "eta-sec", etaSec);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Histogram bucket of the duration.
+     */
+    static int bucket(long durationMs) {
+        if (durationMs < EXACT_MS) {
+            return (int) Math.max(0, durationMs);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(durationMs);
+        final int sub = (int) (durationMs >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return EXACT_MS + ((exponent - 6) << SUB_BITS) + sub;
+    }
+
+    /**
+     * The highest duration of the histogram bucket.
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < EXACT_MS) {
+            return bucket;
+        }
+        final int exponent = 6 + ((bucket - EXACT_MS) >> SUB_BITS);
+        final long sub = (bucket - EXACT_MS) & ((1 << SUB_BITS) - 1);
+        final long width = 1L << (exponent - SUB_BITS);
+        return ((1L << SUB_BITS) + sub) * width + width - 1;
+    }
+
+    /**
+     * Nearest-rank percentile of the histogram.
+     *
+     * @param histogram counts of {@link #bucket buckets}
+     * @param count     total count
+     * @param p         percentile, 1-100
+     * @return the upper limit of the bucket, 0 if there are no values
+     */
+    static long percentile(long[] histogram, long count, int p) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return bucketLimit(i);
+            }
+        }
+        return bucketLimit(histogram.length - 1);
+    }
+
+    private void writeTrace(String line) {
+        synchronized (TRACE_LOCK) {
+            try {
+                trace.write(line);
+                trace.flush();
+            } catch (IOException e) {
+                throw new ApplyAlterException("failed to write trace file: %s", e, e.getMessage());
+            }
+        }
+    }
+
+    static String quote(@Nullable String s) {
+        if (s == null) {
+            return "null";
+        }
+        final StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < ' ') {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+}
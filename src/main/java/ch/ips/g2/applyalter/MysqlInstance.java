@@ -58,6 +58,11 @@ public class MysqlInstance extends DbInstance {
         //do nothing; mysql does not support schema
     }
 
+    @Override
+    public String makeFirstRowsSql(String select, long rows) {
+        return select + " limit " + rows;
+    }
+
     @Override
     public String getLogTable() {
         return "applyalter_log";
@@ -67,4 +72,53 @@ public class MysqlInstance extends DbInstance {
     public String getPkgLogTable() {
         return "applyalter_pkg";
     }
-}
\ No newline at end of file
+
+    @Override
+    public String getStateTable() {
+        return "applyalter_state";
+    }
+
+    @Override
+    public String getVersionTable() {
+        return "applyalter_version";
+    }
+
+    @Override
+    public String getCheckpointTable() {
+        return "applyalter_checkpoint";
+    }
+
+    @Override
+    public String getLockWaitSql() {
+        return "select count(*) from information_schema.innodb_trx where trx_state = 'LOCK WAIT'";
+    }
+
+    @Override
+    public String getRowEstimateSql() {
+        return "select table_rows from information_schema.tables"
+                + " where table_schema = coalesce(?, database()) and table_name = ?";
+    }
+
+    /**
+     * MySQL 8.0 and newer.
+     */
+    @Override
+    public boolean isSkipLockedSupported() {
+        return true;
+    }
+
+    @Override
+    public String makeCreateWorkTableAsSql(String tableName, String query) {
+        return String.format("create table %s as select * from (%s) q where 1=0", tableName, query);
+    }
+
+    /**
+     * Row value list without VALUES: <code>((?,?),(?,?))</code>.
+     */
+    @Override
+    public String makeValueListSql(int rows, int columns) {
+        final StringBuilder b = new StringBuilder("(");
+        appendRows(b, rows, columns);
+        return b.append(')').toString();
+    }
+}
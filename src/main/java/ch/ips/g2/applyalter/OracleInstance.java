@@ -74,4 +74,24 @@ public class OracleInstance extends DbInstance {
         }
     }
 
-}
\ No newline at end of file
+    @Override
+    public String getRowEstimateSql() {
+        return "select num_rows from all_tables where owner = upper(coalesce(?, sys_context('USERENV', 'CURRENT_SCHEMA')))"
+                + " and table_name = upper(?)";
+    }
+
+    @Override
+    public String makeCreateWorkTableAsSql(String tableName, String query) {
+        return String.format("create table %s as select * from (%s) q where 1=0", tableName, query);
+    }
+
+    /**
+     * Row value list without VALUES: <code>((?,?),(?,?))</code>.
+     */
+    @Override
+    public String makeValueListSql(int rows, int columns) {
+        final StringBuilder b = new StringBuilder("(");
+        appendRows(b, rows, columns);
+        return b.append(')').toString();
+    }
+}
@@ -0,0 +1,128 @@
+package ch.ips.g2.applyalter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same piece of work for several items (usually database instances) concurrently,
+ * with at most {@link #getParallelism()} workers at once.
+ * <p/>
+ * Every worker reports into its own {@link BufferedRunContext}; all buffers are replayed into the real context
+ * in the original item order after all workers finish, so the output looks the same as in serial execution.
+ * With parallelism 1 (the default) everything is executed directly in the calling thread.
+ */
+class ParallelExecutor {
+    private final int parallelism;
+    private ExecutorService pool;
+
+    /**
+     * Work done for single item.
+     */
+    interface Worker<T> {
+        /**
+         * @param item item to process
+         * @param ctx  run context to use; never use the shared one from worker!
+         */
+        void run(T item, RunContext ctx);
+    }
+
+    public ParallelExecutor(int parallelism) {
+        if (parallelism < 1) {
+            throw new ApplyAlterException("invalid parallelism: %d", parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isParallel() {
+        return parallelism > 1;
+    }
+
+    private synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+        }
+        return pool;
+    }
+
+    /**
+     * Process all items and wait for them. The first failure (in item order) is re-thrown after
+     * all workers finish and all reports are replayed.
+     *
+     * @param ctx    the real run context
+     * @param items  items to process
+     * @param worker the work
+     * @throws ApplyAlterException failure of any worker
+     */
+    public <T> void forEach(RunContext ctx, Collection<T> items, final Worker<T> worker)
+            throws ApplyAlterException {
+        if (!isParallel() || items.size() <= 1) {
+            for (T item : items) {
+                worker.run(item, ctx);
+            }
+            return;
+        }
+
+        final List<BufferedRunContext> buffers = new ArrayList<BufferedRunContext>(items.size());
+        final List<Future<?>> futures = new ArrayList<Future<?>>(items.size());
+        for (final T item : items) {
+            final BufferedRunContext buffer = new BufferedRunContext(ctx);
+            buffers.add(buffer);
+            futures.add(getPool().submit(new Runnable() {
+                public void run() {
+                    worker.run(item, buffer);
+                }
+            }));
+        }
+
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new ApplyAlterException("interrupted while waiting for parallel workers", e);
+                }
+            }
+        }
+        for (BufferedRunContext buffer : buffers) {
+            buffer.replay(ctx);
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new ApplyAlterException(failure);
+        }
+    }
+
+    /**
+     * Worker threads are daemons: they must never block the JVM exit.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "applyalter-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -9,7 +9,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -119,6 +122,21 @@ public class PgInstance extends DbInstance {
         return "public.applyalter_pkg";
     }
 
+    @Override
+    public String getStateTable() {
+        return "public.applyalter_state";
+    }
+
+    @Override
+    public String getVersionTable() {
+        return "public.applyalter_version";
+    }
+
+    @Override
+    public String getCheckpointTable() {
+        return "public.applyalter_checkpoint";
+    }
+
     /**
      * Load and parse <a href="http://www.postgresql.org/docs/current/static/libpq-pgpass.html">pgpass file</a>, try to find
      * matching line and if found, set password via {@link #setPass(String)}
@@ -203,8 +221,95 @@ public class PgInstance extends DbInstance {
         return null;
     }
 
+    @Override
+    public boolean isRowValueComparisonSupported() {
+        return true;
+    }
+
+    /**
+     * Histogram bounds from pg_stats (available after ANALYZE).
+     */
+    @Override
+    public List<Long> loadKeyQuantiles(Connection con, String table, String column) throws SQLException {
+        final int dot = table.lastIndexOf('.');
+        final String sql = "select unnest(histogram_bounds::text::text[]) from pg_stats"
+                + " where schemaname = " + (dot < 0 ? "current_schema()" : "?") + " and tablename = ? and attname = ?";
+        final List<String> values = new ArrayList<String>();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement(sql);
+            int i = 1;
+            if (dot >= 0) {
+                st.setString(i++, table.substring(0, dot).toLowerCase());
+            }
+            st.setString(i++, table.substring(dot + 1).toLowerCase());
+            st.setString(i, column.toLowerCase());
+            rs = st.executeQuery();
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        } finally {
+            DbUtils.close(st, rs);
+        }
+        return parseQuantiles(values);
+    }
+
     @Override
     public String makeCreateTemporaryTableAsSql(String tableName, String query) {
         return String.format(SQL_CREATE_TEMPORARY_TABLE, tableName, query);
     }
+
+    @Override
+    public boolean isTemporaryTableSupported() {
+        return true;
+    }
+
+    /**
+     * The largest replay lag of standbys in seconds (PostgreSQL 10+).
+     */
+    @Override
+    public String getReplicationLagSql() {
+        return "select coalesce(max(extract(epoch from replay_lag)), 0) from pg_stat_replication";
+    }
+
+    @Override
+    public String getLockWaitSql() {
+        return "select count(*) from pg_locks where not granted";
+    }
+
+    @Override
+    public String getRowEstimateSql() {
+        return "select cast(c.reltuples as bigint) from pg_class c join pg_namespace n on n.oid = c.relnamespace"
+                + " where n.nspname = lower(coalesce(cast(? as varchar), current_schema())) and c.relname = lower(?)";
+    }
+
+    /**
+     * Leaf tables of the inheritance tree (both declarative partitions and inheritance).
+     */
+    @Override
+    public String getPartitionsSql() {
+        return "with recursive tree(relid) as ("
+                + " select inhrelid from pg_inherits"
+                + " where inhparent = cast(coalesce(cast(? as varchar) || '.', '') || ? as regclass)"
+                + " union all select i.inhrelid from pg_inherits i join tree t on i.inhparent = t.relid)"
+                + " select cast(cast(relid as regclass) as varchar), cast(cast(relid as regclass) as varchar)"
+                + " from tree t where not exists (select 1 from pg_inherits i where i.inhparent = t.relid)"
+                + " order by 1";
+    }
+
+    @Override
+    public boolean isSkipLockedSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isArrayBindingSupported() {
+        return true;
+    }
+
+    @Override
+    public int getMaxInListSize() {
+        return 10000;
+    }
 }
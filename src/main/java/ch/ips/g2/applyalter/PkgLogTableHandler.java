@@ -80,6 +80,44 @@ class PkgLogTableHandler {
         }
     }
 
+    /**
+     * Has the package been recorded on all database instances? The query is rolled back right away, so no
+     * transaction is left open. Missing table (or any other error) means "not applied".
+     *
+     * @param sourceHash hash of source bundle
+     * @return true if all instances have record with this hash
+     */
+    public boolean isApplied(String sourceHash) {
+        for (DbInstance d : db.getEntries()) {
+            Connection c = d.getConnection(runContext);
+            ResultSet r = null;
+            PreparedStatement s = null;
+            try {
+                s = c.prepareStatement("SELECT at FROM " + d.getPkgLogTable() + " WHERE dbid=? and hash=?");
+                s.setString(1, d.getId());
+                s.setString(2, sourceHash.toUpperCase());
+                s.setMaxRows(1);
+                r = s.executeQuery();
+                if (!r.next()) {
+                    runContext.report(MAIN, "Package %s not applied on %s", sourceHash, d.getId());
+                    return false;
+                }
+                runContext.report(DETAIL, "Package %s applied on %s at %s", sourceHash, d.getId(), r.getTimestamp(1));
+            } catch (SQLException e) {
+                runContext.report(DETAIL, "failed to read applyalter_pkg record: %s", e.getMessage());
+                return false;
+            } finally {
+                DbUtils.close(s, r);
+                try {
+                    c.rollback();
+                } catch (SQLException e) {
+                    //ignore
+                }
+            }
+        }
+        return true;
+    }
+
     //----------------------------------------------------------------------------------------------------------------
     //----------------------------------------------------------------------------------------------------------------
 
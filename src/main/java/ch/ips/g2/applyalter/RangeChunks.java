@@ -0,0 +1,222 @@
+package ch.ips.g2.applyalter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * ID range [lower, upper] split into segments, shared by parallel workers of {@link MigrationIdRange}.
+ * Every worker claims steps from "its" segment; when the segment is exhausted, it takes the next unassigned one,
+ * and when there is none left, it steals steps from the segment with the most remaining IDs.
+ * <p/>
+ * Claimed steps are in flight until the worker reports them {@link #done}; {@link #getCommittedWatermark()}
+ * is then the position where a resumed migration may continue.
+ * <p/>
+ * Thread safe.
+ */
+class RangeChunks {
+    /**
+     * Single step claimed by a worker.
+     */
+    public static class Claim {
+        final int segment;
+        final long from;
+        final long to;
+
+        Claim(int segment, long from, long to) {
+            this.segment = segment;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+    }
+
+    private static class Segment {
+        long next;
+        final long hi;
+        /**
+         * Note: hi + 1 might overflow, so the end is not marked by next > hi.
+         */
+        boolean done;
+
+        Segment(long lo, long hi) {
+            this.next = lo;
+            this.hi = hi;
+        }
+
+        long remaining() {
+            return done ? 0 : hi - next + 1;
+        }
+    }
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int unassigned;
+    /**
+     * Starts of the claims which are not done yet (claims never overlap).
+     */
+    private final TreeSet<Long> inFlight = new TreeSet<Long>();
+
+    /**
+     * Split the range.
+     *
+     * @param lower  lower bound (inclusive)
+     * @param upper  upper bound (inclusive)
+     * @param parts  number of equal segments, used when there are no bounds
+     * @param bounds segment boundaries (for example, quantiles from column statistics); each one starts new segment;
+     *               bounds outside the range are ignored
+     */
+    public RangeChunks(long lower, long upper, int parts, Collection<Long> bounds) {
+        if (upper < lower) {
+            return;
+        }
+        final TreeSet<Long> starts = new TreeSet<Long>();
+        for (Long b : bounds) {
+            if (b != null && b > lower && b <= upper) {
+                starts.add(b);
+            }
+        }
+        if (starts.isEmpty() && parts > 1) {
+            final long size = (upper - lower) / parts + 1;
+            for (int i = 1; i < parts; i++) {
+                final long start = lower + size * i;
+                if (start > upper) {
+                    break;
+                }
+                starts.add(start);
+            }
+        }
+        long lo = lower;
+        for (Long start : starts) {
+            segments.add(new Segment(lo, start - 1));
+            lo = start;
+        }
+        segments.add(new Segment(lo, upper));
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Claim next step.
+     *
+     * @param preferred segment of the previous claim, -1 for the first claim
+     * @param step      maximum number of IDs in the step
+     * @return the claimed step, null when the whole range has been claimed
+     */
+    @Nullable
+    public synchronized Claim next(int preferred, long step) {
+        int segment = preferred;
+        if (segment < 0 || segments.get(segment).remaining() == 0) {
+            segment = -1;
+            while (unassigned < segments.size()) {
+                final int candidate = unassigned++;
+                if (segments.get(candidate).remaining() > 0) {
+                    segment = candidate;
+                    break;
+                }
+            }
+        }
+        if (segment < 0) {
+            //steal
+            long max = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                final long remaining = segments.get(i).remaining();
+                if (remaining > max) {
+                    max = remaining;
+                    segment = i;
+                }
+            }
+            if (segment < 0) {
+                return null;
+            }
+        }
+        final Segment s = segments.get(segment);
+        final long from = s.next;
+        final long to = s.hi - from < step ? s.hi : from + step - 1;
+        if (to == s.hi) {
+            s.done = true;
+        } else {
+            s.next = to + 1;
+        }
+        inFlight.add(from);
+        return new Claim(segment, from, to);
+    }
+
+    /**
+     * The claimed step has been processed (committed).
+     */
+    public synchronized void done(Claim claim) {
+        inFlight.remove(claim.getFrom());
+    }
+
+    /**
+     * The smallest ID that has not been claimed yet; all IDs below it have been claimed (so, after all workers
+     * have finished, processed).
+     *
+     * @return null if the whole range has been claimed
+     */
+    @Nullable
+    public synchronized Long getLowWatermark() {
+        Long min = null;
+        for (Segment s : segments) {
+            if (!s.done && (min == null || s.next < min)) {
+                min = s.next;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * The smallest ID that has been claimed but not {@link #done} yet, or that has not been claimed yet;
+     * all IDs below it have been processed. It never decreases.
+     *
+     * @return null if the whole range has been processed
+     */
+    @Nullable
+    public synchronized Long getCommittedWatermark() {
+        final Long unclaimed = getLowWatermark();
+        if (inFlight.isEmpty()) {
+            return unclaimed;
+        }
+        return unclaimed == null ? inFlight.first() : Math.min(unclaimed, inFlight.first());
+    }
+
+    /**
+     * Seek mode: there are no IDs between the last claimed step of the segment and the given ID, so the segment
+     * can skip them.
+     *
+     * @param segment segment of the claim
+     * @param id      the next existing ID; null if there are no more IDs
+     * @return number of skipped IDs
+     */
+    public synchronized long skipTo(int segment, @Nullable Long id) {
+        final Segment s = segments.get(segment);
+        if (s.done) {
+            return 0;
+        }
+        if (id == null || id > s.hi) {
+            final long skipped = s.remaining();
+            s.done = true;
+            return skipped;
+        } else if (id > s.next) {
+            final long skipped = id - s.next;
+            s.next = id;
+            return skipped;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,145 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static ch.ips.g2.applyalter.ReportLevel.DETAIL;
+import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
+
+/**
+ * Limited DML statement executed repeatedly, with commit after every pass, until it changes no rows; typically
+ * a purge like <code>delete from t where ctid in (select ctid from t where created &lt; X limit BATCH_SIZE)</code>.
+ * <p/>
+ * The placeholder ({@link #DEFAULT_PLACEHOLDER} by default) is optional; when present, it is replaced by the
+ * current step, so the batch size can be adaptive (see {@link #getTargetms()}).
+ * {@link #getMaxblkcnt()} guards against statements that never reach zero: when the limit of passes (or
+ * {@link #getMaxseconds()}) is reached, the statement fails.
+ * <p/>
+ * In other run modes than {@link RunMode#SHARP}, the passes are rolled back, so only the first one is executed.
+ */
+@XStreamAlias("repeat-batch")
+public class RepeatBatch extends AbstractMigration {
+    public static final String DEFAULT_PLACEHOLDER = "BATCH_SIZE";
+
+    /**
+     * Sleep between two passes in milliseconds; optional.
+     */
+    private Long sleepms;
+
+    @Override
+    protected String getDefaultPlaceholder() {
+        return DEFAULT_PLACEHOLDER;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public Long getSleepms() {
+        return sleepms;
+    }
+
+    public void setSleepms(Long sleepms) {
+        this.sleepms = sleepms;
+    }
+
+    /**
+     * Check validity of this statement; raise exception if the alterscript is invalid.
+     *
+     * @throws ApplyAlterException invalid statement, invalid alterscript
+     */
+    public void checkParameters() {
+        if (statement == null)
+            throw new ApplyAlterException("invalid apply script: missing \"statement\" for " + this);
+        if (step == null || step.longValue() < 1)
+            throw new ApplyAlterException("invalid apply script: invalid \"step\" for " + this);
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        checkParameters();
+        final Connection connection = dbConn.getConnection(ctx);
+        final AdaptiveStep step = createAdaptiveStep();
+        final Budget budget = createBudget();
+        final Throttle throttle = createThrottle(dbConn);
+
+        ProcessedQuery query = processQuery(getStatement(), Long.toString(step.get()));
+        ctx.report(STATEMENT_STEP, "running query: %s", query.statement);
+
+        PreparedStatement st = null;
+        long preparedStep = step.get();
+        final MigrationProgress progress = createProgress(dbConn, -1);
+        try {
+            st = connection.prepareStatement(query.statement);
+            long passCount = 0;
+            long updatedCount = 0;
+            while (true) {
+                if (budget.isExhausted()) {
+                    throw budgetExhausted(budget, null);
+                }
+                if (query.replacements > 0 && step.get() != preparedStep) {
+                    //adaptive step has changed
+                    preparedStep = step.get();
+                    query = processQuery(getStatement(), Long.toString(preparedStep));
+                    DbUtils.close(st);
+                    st = null;
+                    st = connection.prepareStatement(query.statement);
+                }
+
+                final long start = System.currentTimeMillis();
+                final int updated = st.executeUpdate();
+                final long duration = System.currentTimeMillis() - start;
+                step.update(ctx, duration);
+                budget.blockDone();
+                passCount++;
+                updatedCount += Math.max(0, updated);
+
+                ctx.report(DETAIL, "  pass %d: %d rows updated", passCount, updated);
+                commitStep(ctx, connection);
+                progress.batch(ctx, "pass " + passCount, updated, updated, duration);
+
+                if (updated <= 0) {
+                    break;
+                }
+                if (ctx.getRunMode() != RunMode.SHARP) {
+                    //the pass has been rolled back, the next one would do the same
+                    ctx.report(STATEMENT_STEP, " not committed, stopping after the first pass");
+                    break;
+                }
+                throttle.pause(ctx, connection, step, updated);
+                if (sleepms != null && sleepms > 0) {
+                    Throttle.sleep(sleepms);
+                }
+            }
+
+            ctx.report(STATEMENT_STEP, " repeat finished, total %d rows updated in %d passes",
+                    updatedCount, passCount);
+        } finally {
+            progress.finish(ctx);
+            DbUtils.close(st);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(this.getClass().getSimpleName()).append(": ");
+        b.append("logid: ").append(logid).append("\n");
+        b.append("statement:").append(" ").append(statement).append("\n");
+        b.append("step: ").append(step).append("\n");
+        if (maxblkcnt != null) {
+            b.append("maxblkcnt: ").append(maxblkcnt).append("\n");
+        }
+        if (sleepms != null) {
+            b.append("sleepms: ").append(sleepms).append("\n");
+        }
+        b.append("description: ").append(description).append("\n");
+        return b.toString();
+    }
+}
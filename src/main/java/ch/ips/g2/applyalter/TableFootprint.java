@@ -0,0 +1,562 @@
+package ch.ips.g2.applyalter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tables read and written by a statement (or by whole alterscript), found by a lightweight analysis of the SQL.
+ * Used by {@link AlterScheduler} to find out which alterscripts can run concurrently.
+ * <p/>
+ * The analysis is intentionally conservative: anything it does not understand (procedure calls, anonymous blocks,
+ * calls of functions other than {@link #BUILTIN_FUNCTIONS}, cascading DDL, unknown statement types, ...)
+ * makes the footprint {@link #isKnown() unknown}
+ * and such alterscript is executed as a barrier. Side effects of triggers are not detected.
+ * <p/>
+ * Table names are compared case-insensitively and without the schema, so the same table referenced with
+ * and without the schema is never considered as two tables (at the cost of false conflicts between the same
+ * table names in different schemas).
+ */
+public class TableFootprint {
+    /**
+     * Statement touching no table at all.
+     */
+    public static final TableFootprint NONE = new TableFootprint(true,
+            Collections.<String>emptySet(), Collections.<String>emptySet());
+    /**
+     * Statement with unknown effects.
+     */
+    public static final TableFootprint UNKNOWN = new TableFootprint(false,
+            Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    private static final Set<String> CLAUSE_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "OUTER", "NATURAL", "ON", "USING",
+            "GROUP", "ORDER", "HAVING", "UNION", "EXCEPT", "INTERSECT", "MINUS", "LIMIT", "FETCH", "OFFSET",
+            "SET", "WITH", "FOR", "WINDOW", "AS", "VALUES", "SELECT", "RETURNING", "WHEN", "THEN", "ELSE", "END",
+            "AND", "OR", "NOT", "IN", "EXISTS", "BETWEEN", "IS", "LIKE", "INTO", "FROM", "TO"
+    ));
+
+    /**
+     * Keywords followed by table name (which can be followed by parenthesis: column list).
+     */
+    private static final Set<String> NAME_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "INTO", "TABLE", "ON", "REFERENCES", "EXISTS", "VIEW", "INDEX", "ONLY"
+    ));
+
+    /**
+     * Names which can be followed by parenthesis without being a call of (possibly side-effecting) user-defined
+     * function: builtin functions without side effects, data types and keywords.
+     */
+    protected static final Set<String> BUILTIN_FUNCTIONS = new HashSet<String>(Arrays.asList(
+            //aggregate and window functions
+            "COUNT", "SUM", "MIN", "MAX", "AVG", "ARRAY_AGG", "STRING_AGG", "LISTAGG", "ROW_NUMBER", "RANK",
+            "DENSE_RANK", "LAG", "LEAD", "FIRST_VALUE", "LAST_VALUE", "OVER", "FILTER", "PARTITION",
+            //scalar functions
+            "COALESCE", "NULLIF", "NVL", "DECODE", "GREATEST", "LEAST", "CAST", "EXTRACT", "UPPER", "LOWER",
+            "SUBSTR", "SUBSTRING", "TRIM", "LTRIM", "RTRIM", "LENGTH", "CONCAT", "REPLACE", "POSITION", "LPAD",
+            "RPAD", "ROUND", "TRUNC", "ABS", "MOD", "FLOOR", "CEIL", "CEILING", "POWER", "SQRT", "NOW",
+            "DATE_TRUNC", "TO_CHAR", "TO_DATE", "TO_NUMBER", "TO_TIMESTAMP", "DAYS", "YEAR", "MONTH", "DAY",
+            "HOUR", "MINUTE", "SECOND", "UNNEST", "GENERATE_SERIES", "NEXTVAL", "ANY", "ALL", "SOME", "ARRAY",
+            "ROW",
+            //data types
+            "CHAR", "CHARACTER", "VARCHAR", "VARCHAR2", "NCHAR", "NVARCHAR", "NVARCHAR2", "VARYING", "NUMERIC",
+            "DECIMAL", "DEC", "NUMBER", "FLOAT", "DOUBLE", "REAL", "INTEGER", "BIGINT", "SMALLINT", "DATE",
+            "TIME", "TIMESTAMP", "INTERVAL", "BIT", "BINARY", "VARBINARY", "RAW", "CLOB", "BLOB", "DBCLOB",
+            "GRAPHIC", "VARGRAPHIC",
+            //keywords followed by column list or condition
+            "KEY", "UNIQUE", "CHECK", "INCLUDE", "CONSTRAINT", "DEFAULT", "BY"
+    ));
+
+    private final boolean known;
+    private final Set<String> reads;
+    private final Set<String> writes;
+
+    private TableFootprint(boolean known, Set<String> reads, Set<String> writes) {
+        this.known = known;
+        this.reads = reads;
+        this.writes = writes;
+    }
+
+    /**
+     * Footprint of explicitly declared resources: every resource is considered as written.
+     *
+     * @param resources resource (table) names
+     */
+    public static TableFootprint ofResources(Collection<String> resources) {
+        final Set<String> writes = new TreeSet<String>();
+        for (String resource : resources) {
+            writes.add(normalizeName(resource));
+        }
+        return new TableFootprint(true, Collections.<String>emptySet(), writes);
+    }
+
+    /**
+     * Analyze SQL statement(s); several statements can be separated by semicolons.
+     *
+     * @param sql statement, might be null
+     * @return footprint of the statement
+     */
+    public static TableFootprint analyze(String sql) {
+        if (sql == null) {
+            return NONE;
+        }
+        final List<String> tokens = tokenize(sql);
+        if (tokens == null) {
+            return UNKNOWN;
+        }
+        TableFootprint result = NONE;
+        int start = 0;
+        for (int i = 0; i <= tokens.size(); i++) {
+            if (i == tokens.size() || ";".equals(tokens.get(i))) {
+                if (i > start) {
+                    result = result.merge(analyzeStatement(tokens.subList(start, i)));
+                }
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Analyze SQL expression (for example, "(select max(id) from tab)"): only the read tables are detected.
+     *
+     * @param expression expression, might be null
+     * @return footprint of the expression
+     */
+    public static TableFootprint analyzeExpression(String expression) {
+        if (expression == null) {
+            return NONE;
+        }
+        final List<String> tokens = tokenize(expression);
+        if (tokens == null) {
+            return UNKNOWN;
+        }
+        final Set<String> reads = new TreeSet<String>();
+        if (!collectReads(tokens, reads)) {
+            return UNKNOWN;
+        }
+        return new TableFootprint(true, reads, Collections.<String>emptySet());
+    }
+
+    public boolean isKnown() {
+        return known;
+    }
+
+    public Set<String> getReads() {
+        return reads;
+    }
+
+    public Set<String> getWrites() {
+        return writes;
+    }
+
+    /**
+     * Union of both footprints.
+     */
+    public TableFootprint merge(TableFootprint other) {
+        if (!known || !other.known) {
+            return UNKNOWN;
+        }
+        if (other.reads.isEmpty() && other.writes.isEmpty()) {
+            return this;
+        }
+        final Set<String> r = new TreeSet<String>(reads);
+        r.addAll(other.reads);
+        final Set<String> w = new TreeSet<String>(writes);
+        w.addAll(other.writes);
+        return new TableFootprint(true, r, w);
+    }
+
+    /**
+     * Can't the two footprints be executed concurrently? That is when either of them is unknown or any table
+     * written by one of them is touched by the other one.
+     */
+    public boolean conflictsWith(TableFootprint other) {
+        if (!known || !other.known) {
+            return true;
+        }
+        return intersects(writes, other.writes) || intersects(writes, other.reads) || intersects(reads, other.writes);
+    }
+
+    private static boolean intersects(Set<String> a, Set<String> b) {
+        for (String name : a) {
+            if (b.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        if (!known) {
+            return "unknown";
+        }
+        return "reads " + reads + ", writes " + writes;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Table name without schema, uppercase.
+     */
+    protected static String normalizeName(String name) {
+        name = name.trim();
+        final int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            name = name.substring(dot + 1);
+        }
+        return name.toUpperCase();
+    }
+
+    private static TableFootprint analyzeStatement(List<String> tokens) {
+        int pos = 0;
+        while (pos < tokens.size() && "(".equals(tokens.get(pos))) {
+            pos++;
+        }
+        if (pos >= tokens.size()) {
+            return NONE;
+        }
+        final Set<String> writes = new TreeSet<String>();
+        final String first = tokens.get(pos);
+        final String second = token(tokens, pos + 1);
+        if ("SELECT".equals(first) || "VALUES".equals(first) || "WITH".equals(first)) {
+            //note: writable CTE (PostgreSQL) is detected by the DML keywords below
+            for (int i = pos; i < tokens.size(); i++) {
+                final String t = tokens.get(i);
+                final String previous = i > 0 ? tokens.get(i - 1) : null;
+                if ("FOR".equals(previous) && "UPDATE".equals(t)) {
+                    //select ... for update: row locks
+                    return UNKNOWN;
+                }
+                if ("DO".equals(previous) || "THEN".equals(previous)) {
+                    //insert ... on conflict do update, merge ... then update: the target is already known
+                    continue;
+                }
+                if ("INSERT".equals(t) || "UPDATE".equals(t) || "DELETE".equals(t) || "MERGE".equals(t)) {
+                    final String target = findDmlTarget(tokens, i);
+                    if (target == null) {
+                        return UNKNOWN;
+                    }
+                    writes.add(target);
+                }
+            }
+        } else if ("INSERT".equals(first) || "UPDATE".equals(first) || "DELETE".equals(first)
+                || "MERGE".equals(first)) {
+            final String target = findDmlTarget(tokens, pos);
+            if (target == null) {
+                return UNKNOWN;
+            }
+            writes.add(target);
+        } else if ("TRUNCATE".equals(first) || "LOCK".equals(first)
+                || ("DROP".equals(first)
+                && ("TABLE".equals(second) || "VIEW".equals(second) || "SEQUENCE".equals(second)))) {
+            if (tokens.contains("CASCADE")) {
+                //dependent objects are affected as well
+                return UNKNOWN;
+            }
+            final List<String> targets = namesAfter(tokens, "DROP".equals(first) ? pos + 2 : pos + 1,
+                    "TABLE", "IF", "EXISTS", "ONLY");
+            if (targets.isEmpty()) {
+                return UNKNOWN;
+            }
+            writes.addAll(targets);
+        } else if ("ALTER".equals(first)
+                && ("TABLE".equals(second) || "VIEW".equals(second) || "SEQUENCE".equals(second))) {
+            final String target = nameAfter(tokens, pos + 2, "IF", "EXISTS", "ONLY");
+            if (target == null) {
+                return UNKNOWN;
+            }
+            writes.add(target);
+            final int rename = tokens.indexOf("RENAME");
+            if (rename > 0 && "TO".equals(token(tokens, rename + 1))) {
+                //alter table a rename to b
+                final String newName = nameAfter(tokens, rename + 2);
+                if (newName == null) {
+                    return UNKNOWN;
+                }
+                writes.add(newName);
+            }
+        } else if ("CREATE".equals(first)) {
+            int i = pos + 1;
+            while (i < tokens.size() && Arrays.asList("OR", "REPLACE", "UNIQUE", "GLOBAL", "TEMPORARY", "UNLOGGED")
+                    .contains(tokens.get(i))) {
+                i++;
+            }
+            final String kind = token(tokens, i);
+            if ("INDEX".equals(kind)) {
+                final int on = tokens.indexOf("ON");
+                final String target = on < 0 ? null : nameAfter(tokens, on + 1, "ONLY");
+                if (target == null) {
+                    return UNKNOWN;
+                }
+                writes.add(target);
+            } else if ("TABLE".equals(kind) || "VIEW".equals(kind) || "SEQUENCE".equals(kind)) {
+                final String target = nameAfter(tokens, i + 1, "IF", "NOT", "EXISTS");
+                if (target == null) {
+                    return UNKNOWN;
+                }
+                writes.add(target);
+            } else {
+                return UNKNOWN;
+            }
+        } else if ("COMMENT".equals(first) && "ON".equals(second)) {
+            final String kind = token(tokens, pos + 2);
+            final String target = nameAfter(tokens, pos + 3);
+            if (target == null) {
+                return UNKNOWN;
+            }
+            if ("TABLE".equals(kind) || "VIEW".equals(kind)) {
+                writes.add(target);
+            } else if ("COLUMN".equals(kind) && target.indexOf('.') > 0) {
+                writes.add(target.substring(0, target.lastIndexOf('.')));
+            } else {
+                return UNKNOWN;
+            }
+        } else if ("GRANT".equals(first) || "REVOKE".equals(first)) {
+            final int on = tokens.indexOf("ON");
+            final String target = on < 0 ? null : nameAfter(tokens, on + 1, "TABLE");
+            if (target == null || "ALL".equals(target) || "SCHEMA".equals(target) || "FUNCTION".equals(target)
+                    || "PROCEDURE".equals(target) || "SEQUENCE".equals(target)) {
+                return UNKNOWN;
+            }
+            writes.add(target);
+        } else if ("RENAME".equals(first)) {
+            final String target = nameAfter(tokens, pos + 1, "TABLE");
+            final int to = tokens.indexOf("TO");
+            final String newName = to < 0 ? null : nameAfter(tokens, to + 1);
+            if (target == null || newName == null) {
+                return UNKNOWN;
+            }
+            writes.add(target);
+            writes.add(newName);
+        } else {
+            return UNKNOWN;
+        }
+
+        final Set<String> reads = new TreeSet<String>();
+        if (!collectReads(tokens, reads)) {
+            return UNKNOWN;
+        }
+        final Set<String> normalizedWrites = new TreeSet<String>();
+        for (String w : writes) {
+            normalizedWrites.add(normalizeName(w));
+        }
+        reads.removeAll(normalizedWrites);
+        return new TableFootprint(true, reads, normalizedWrites);
+    }
+
+    /**
+     * Find the target of INSERT/UPDATE/DELETE/MERGE starting at given position.
+     */
+    private static String findDmlTarget(List<String> tokens, int pos) {
+        final String kind = tokens.get(pos);
+        if ("UPDATE".equals(kind)) {
+            return nameAfter(tokens, pos + 1, "ONLY");
+        } else if ("INSERT".equals(kind)) {
+            return nameAfter(tokens, pos + 1, "INTO");
+        } else if ("DELETE".equals(kind)) {
+            return nameAfter(tokens, pos + 1, "FROM", "ONLY");
+        } else {
+            return nameAfter(tokens, pos + 1, "INTO");
+        }
+    }
+
+    /**
+     * Collect tables following FROM, JOIN, USING and REFERENCES.
+     *
+     * @return false if the statement calls a function other than {@link #BUILTIN_FUNCTIONS} (possibly with
+     * side effects)
+     */
+    private static boolean collectReads(List<String> tokens, Set<String> reads) {
+        final Set<String> cteNames = new HashSet<String>();
+        for (int i = 0; i + 2 < tokens.size(); i++) {
+            if ("AS".equals(tokens.get(i + 1)) && "(".equals(tokens.get(i + 2)) && isName(tokens.get(i))) {
+                cteNames.add(normalizeName(tokens.get(i)));
+            }
+        }
+        for (int i = 0; i < tokens.size(); i++) {
+            final String t = tokens.get(i);
+            if (isName(t) && "(".equals(token(tokens, i + 1)) && !BUILTIN_FUNCTIONS.contains(t)
+                    && (i == 0 || !NAME_KEYWORDS.contains(tokens.get(i - 1)))
+                    && !"AS".equals(token(tokens, closingParenthesis(tokens, i + 1) + 1))) {
+                //call of user-defined function: can do anything
+                //(note: name followed by column list and AS is common table expression)
+                return false;
+            }
+            if ("FROM".equals(t) || "JOIN".equals(t) || "USING".equals(t) || "REFERENCES".equals(t)) {
+                int j = i + 1;
+                while (j < tokens.size()) {
+                    if ("LATERAL".equals(tokens.get(j)) || "ONLY".equals(tokens.get(j))) {
+                        j++;
+                        continue;
+                    }
+                    final String name = tokens.get(j);
+                    if (!isName(name) || ("(".equals(token(tokens, j + 1)) && !"REFERENCES".equals(t))) {
+                        //note: table function or subquery
+                        break;
+                    }
+                    final String normalized = normalizeName(name);
+                    if (!cteNames.contains(normalized)) {
+                        reads.add(normalized);
+                    }
+                    j++;
+                    //optional alias
+                    if ("AS".equals(token(tokens, j))) {
+                        j++;
+                    }
+                    if (isName(token(tokens, j))) {
+                        j++;
+                    }
+                    if (!",".equals(token(tokens, j)) || !("FROM".equals(t) || "USING".equals(t))) {
+                        break;
+                    }
+                    j++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Index of the parenthesis closing the one at given position.
+     *
+     * @return index, size of the list if not closed
+     */
+    private static int closingParenthesis(List<String> tokens, int open) {
+        int depth = 0;
+        for (int i = open; i < tokens.size(); i++) {
+            if ("(".equals(tokens.get(i))) {
+                depth++;
+            } else if (")".equals(tokens.get(i)) && --depth == 0) {
+                return i;
+            }
+        }
+        return tokens.size();
+    }
+
+    /**
+     * Comma delimited list of names, for example <code>drop table a, b</code>.
+     *
+     * @return the names, empty if there is no name at the position
+     */
+    private static List<String> namesAfter(List<String> tokens, int pos, String... skipped) {
+        final List<String> names = new ArrayList<String>();
+        while (true) {
+            final String name = nameAfter(tokens, pos, skipped);
+            if (name == null) {
+                return names;
+            }
+            names.add(name);
+            pos = skipTo(tokens, pos, name) + 1;
+            if (!",".equals(token(tokens, pos))) {
+                return names;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Position of the token, starting at given position.
+     */
+    private static int skipTo(List<String> tokens, int pos, String name) {
+        while (pos < tokens.size() && !name.equals(tokens.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static String nameAfter(List<String> tokens, int pos, String... skipped) {
+        final List<String> skip = Arrays.asList(skipped);
+        while (pos < tokens.size() && skip.contains(tokens.get(pos))) {
+            pos++;
+        }
+        final String name = token(tokens, pos);
+        return isName(name) ? name : null;
+    }
+
+    private static String token(List<String> tokens, int pos) {
+        return pos < tokens.size() ? tokens.get(pos) : null;
+    }
+
+    private static boolean isName(String token) {
+        if (token == null || token.isEmpty() || CLAUSE_KEYWORDS.contains(token)) {
+            return false;
+        }
+        final char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_' || c == '"';
+    }
+
+    /**
+     * Split SQL into tokens: names (uppercase, with the schema; quoted names keep their quotes and case),
+     * punctuation, and "?" for literals. Comments are skipped.
+     *
+     * @return tokens, or null if the SQL contains something the analysis can't handle (dollar quoting)
+     */
+    protected static List<String> tokenize(String sql) {
+        final List<String> tokens = new ArrayList<String>();
+        final int len = sql.length();
+        int i = 0;
+        while (i < len) {
+            final char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+                while (i < len && sql.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+                final int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? len : end + 2;
+            } else if (c == '\'') {
+                i++;
+                while (i < len) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                tokens.add("?");
+            } else if (c == '$' && i + 1 < len && (sql.charAt(i + 1) == '$' || Character.isLetter(sql.charAt(i + 1)))) {
+                //dollar quoted string: PostgreSQL function body or DO block
+                return null;
+            } else if (c == '"' || Character.isLetter(c) || c == '_') {
+                final StringBuilder name = new StringBuilder();
+                while (i < len) {
+                    final char n = sql.charAt(i);
+                    if (n == '"') {
+                        final int end = sql.indexOf('"', i + 1);
+                        final int stop = end < 0 ? len : end + 1;
+                        name.append(sql, i, stop);
+                        i = stop;
+                    } else if (Character.isLetterOrDigit(n) || n == '_' || n == '$' || n == '#' || n == '.') {
+                        name.append(Character.toUpperCase(n));
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                tokens.add(name.toString());
+            } else if (Character.isDigit(c)) {
+                while (i < len && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                tokens.add("?");
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,144 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Throttle of batch migration, consulted after every committed step: it may sleep (or shrink the adaptive step)
+ * to keep the load of the database (replicas, WAL, locks) acceptable. Implementations must be thread safe,
+ * one instance is shared by parallel workers.
+ *
+ * @see AbstractMigration#createThrottle(DbInstance)
+ */
+abstract class Throttle {
+    /**
+     * No throttling.
+     */
+    public static final Throttle NONE = new Throttle() {
+        public void pause(RunContext ctx, Connection c, AdaptiveStep step, long rows) {
+        }
+    };
+
+    /**
+     * Step has been committed: wait if necessary.
+     *
+     * @param ctx  run context
+     * @param c    connection of the migration (or worker); there is no open transaction
+     * @param step step of the migration
+     * @param rows number of rows changed by the step
+     * @throws SQLException        probe failure
+     * @throws ApplyAlterException interrupted
+     */
+    public abstract void pause(RunContext ctx, Connection c, AdaptiveStep step, long rows) throws SQLException;
+
+    protected static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplyAlterException("interrupted while throttling migration", e);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Probe query returning single number (replication lag, number of lock waits, load...): while the value is over
+     * the limit, halve the adaptive step and sleep.
+     */
+    static class Probe extends Throttle {
+        private final String sql;
+        private final double limit;
+        private final long waitMs;
+
+        Probe(String sql, double limit, long waitMs) {
+            this.sql = sql;
+            this.limit = limit;
+            this.waitMs = waitMs;
+        }
+
+        public void pause(RunContext ctx, Connection c, AdaptiveStep step, long rows) throws SQLException {
+            boolean shrunk = false;
+            double value;
+            while ((value = probe(c)) > limit) {
+                if (!shrunk) {
+                    step.shrink(ctx);
+                    shrunk = true;
+                }
+                synchronized (ctx) {
+                    ctx.report(ReportLevel.DETAIL, "  throttled: %s over %s, waiting %d ms", value, limit, waitMs);
+                }
+                sleep(waitMs);
+            }
+        }
+
+        protected double probe(Connection c) throws SQLException {
+            PreparedStatement st = null;
+            ResultSet rs = null;
+            try {
+                st = c.prepareStatement(sql);
+                rs = st.executeQuery();
+                return rs.next() ? rs.getDouble(1) : 0;
+            } finally {
+                DbUtils.close(st, rs);
+                //do not keep snapshot of the probe for the next step
+                c.rollback();
+            }
+        }
+    }
+
+    /**
+     * Token bucket: at most N changed rows per second, with burst of one second.
+     */
+    static class TokenBucket extends Throttle {
+        private final double rowsPerMs;
+        private final double capacity;
+        private double tokens;
+        private long lastMs = System.currentTimeMillis();
+
+        TokenBucket(long rowsPerSecond) {
+            this.rowsPerMs = rowsPerSecond / 1000.0;
+            this.capacity = rowsPerSecond;
+            this.tokens = capacity;
+        }
+
+        public void pause(RunContext ctx, Connection c, AdaptiveStep step, long rows) {
+            final long waitMs = take(rows, System.currentTimeMillis());
+            if (waitMs > 0) {
+                sleep(waitMs);
+            }
+        }
+
+        /**
+         * Take tokens for the rows, possibly going into debt.
+         *
+         * @return time to wait until the debt is paid
+         */
+        synchronized long take(long rows, long now) {
+            tokens = Math.min(capacity, tokens + (now - lastMs) * rowsPerMs);
+            lastMs = now;
+            tokens -= rows;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rowsPerMs);
+        }
+    }
+
+    /**
+     * Several throttles, consulted in order.
+     */
+    static class Chain extends Throttle {
+        private final List<Throttle> throttles;
+
+        Chain(List<Throttle> throttles) {
+            this.throttles = throttles;
+        }
+
+        public void pause(RunContext ctx, Connection c, AdaptiveStep step, long rows) throws SQLException {
+            for (Throttle t : throttles) {
+                t.pause(ctx, c, step, rows);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class AdaptiveStepTest {
+
+    public void testFixed() {
+        final AdaptiveStep step = new AdaptiveStep(1000);
+        Assert.assertFalse(step.isAdaptive());
+        Assert.assertEquals(step.update(new InternalRunContext(), 100000), 1000);
+    }
+
+    public void testAimd() {
+        final RunContext ctx = new InternalRunContext();
+        final AdaptiveStep step = new AdaptiveStep(1000, 500, 100, 1600);
+        //fast batches: additive increase, up to max
+        Assert.assertEquals(step.update(ctx, 50), 1250);
+        Assert.assertEquals(step.update(ctx, 50), 1500);
+        Assert.assertEquals(step.update(ctx, 50), 1600);
+        //near the target: no change
+        Assert.assertEquals(step.update(ctx, 450), 1600);
+        //slow batches: multiplicative decrease, down to min
+        Assert.assertEquals(step.update(ctx, 3000), 800);
+        Assert.assertEquals(step.update(ctx, 3000), 400);
+        Assert.assertEquals(step.update(ctx, 3000), 200);
+        Assert.assertEquals(step.update(ctx, 3000), 100);
+        Assert.assertEquals(step.update(ctx, 3000), 100);
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void testInvalidLimits() {
+        new AdaptiveStep(1000, 500, 100, 50);
+    }
+}
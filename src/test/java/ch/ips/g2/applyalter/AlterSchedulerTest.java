@@ -0,0 +1,80 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+@Test
+public class AlterSchedulerTest {
+
+    private static Alter alter(String id, String[] dependsOn, String... conflicts) {
+        Alter a = new Alter();
+        a.setId(id);
+        if (dependsOn != null) {
+            a.dependsOn = new HashSet<String>(Arrays.asList(dependsOn));
+        }
+        if (conflicts.length > 0) {
+            a.conflicts = new HashSet<String>(Arrays.asList(conflicts));
+        }
+        return a;
+    }
+
+    private static List<List<String>> waves(Alter... alters) {
+        return waves(false, alters);
+    }
+
+    private static List<List<String>> waves(boolean analyze, Alter... alters) {
+        RunContext ctx = new PrintWriterRunContext(new PrintWriter(new StringWriter()), new PrintWriter(new StringWriter()));
+        final List<List<String>> result = new ArrayList<List<String>>();
+        for (List<Alter> wave : new AlterScheduler(analyze).buildWaves(ctx, Arrays.asList(alters))) {
+            final List<String> ids = new ArrayList<String>();
+            for (Alter a : wave) {
+                ids.add(a.getId());
+            }
+            result.add(ids);
+        }
+        return result;
+    }
+
+    public void testUndeclaredAltersAreSequential() {
+        Assert.assertEquals(waves(alter("a", null), alter("b", null)).toString(), "[[a], [b]]");
+    }
+
+    public void testDependencies() {
+        final List<List<String>> waves = waves(
+                alter("base", null),
+                alter("x", new String[0], "t1"),
+                alter("y", new String[0], "T2"),
+                alter("z", new String[]{"x.xml"}),
+                alter("w", new String[0], "t2"),
+                alter("end", null));
+        Assert.assertEquals(waves.toString(), "[[base], [x, y], [z, w], [end]]");
+    }
+
+    public void testAnalyzedFootprints() {
+        final Alter base = alter("base", null);
+        base.getStatements().add(new SQL("create table a (id int)"));
+        final Alter x = alter("x", null);
+        x.getStatements().add(new SQL("insert into a (id) select id from b"));
+        final Alter y = alter("y", null);
+        y.getStatements().add(new SQL("update c set v = 1"));
+        final Alter z = alter("z", null);
+        z.getStatements().add(new SQL("delete from b"));
+        final Alter proc = alter("proc", null);
+        proc.getStatements().add(new SQL("call sysproc.admin_cmd('reorg table a')"));
+
+        Assert.assertEquals(waves(true, base, x, y, z, proc).toString(), "[[base, y], [x], [z], [proc]]");
+        Assert.assertEquals(waves(false, base, x, y, z, proc).toString(), "[[base], [x], [y], [z], [proc]]");
+    }
+
+    @Test(expectedExceptions = ApplyAlterException.class)
+    public void testForwardDependency() {
+        waves(alter("a", new String[]{"b"}), alter("b", new String[0], "t"));
+    }
+}
@@ -0,0 +1,62 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@Test
+public class AlterStreamTest {
+
+    /**
+     * Loader producing given number of alterscripts (or failing after them).
+     */
+    private static AlterLoader fakeLoader(final int count, final boolean fail) {
+        return new AlterLoader(null, null, Collections.<String, byte[]>emptyMap()) {
+            @Override
+            public String loadAlters(Handler handler, String... filenames) {
+                for (int i = 0; i < count; i++) {
+                    final Alter a = new Alter();
+                    a.setId("a" + i);
+                    handler.loaded(a);
+                }
+                if (fail) {
+                    throw new ApplyAlterException("broken bundle");
+                }
+                return "HASH";
+            }
+        };
+    }
+
+    public void testAllAltersInOrder() {
+        final AlterStream stream = new AlterStream(fakeLoader(100, false), 3);
+        final List<String> ids = new ArrayList<String>();
+        for (Alter a : stream) {
+            ids.add(a.getId());
+        }
+        stream.close();
+        Assert.assertEquals(ids.size(), 100);
+        Assert.assertEquals(ids.get(0), "a0");
+        Assert.assertEquals(ids.get(99), "a99");
+        Assert.assertEquals(stream.getCount(), 100);
+        Assert.assertEquals(stream.getSourceHash(), "HASH");
+    }
+
+    public void testFailureAfterLoadedAlters() {
+        final AlterStream stream = new AlterStream(fakeLoader(2, true), 1);
+        int count = 0;
+        try {
+            for (Alter a : stream) {
+                count++;
+            }
+            Assert.fail("exception expected");
+        } catch (ApplyAlterException e) {
+            Assert.assertEquals(e.getMessage(), "broken bundle");
+        } finally {
+            stream.close();
+        }
+        Assert.assertEquals(count, 2);
+    }
+}
@@ -0,0 +1,29 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+@Test
+public class CatalogSnapshotTest {
+
+    public void testMayChangeCatalog() {
+        Assert.assertTrue(CatalogSnapshot.mayChangeCatalog(new SQL("create index a_idx on a (x)")));
+        Assert.assertTrue(CatalogSnapshot.mayChangeCatalog(new SQL("update a set x = 1; alter table a add y int")));
+        Assert.assertTrue(CatalogSnapshot.mayChangeCatalog(new SQL("call sysproc.admin_cmd('reorg table a')")));
+        Assert.assertFalse(CatalogSnapshot.mayChangeCatalog(new SQL("update a set x = 'create table b'")));
+        Assert.assertFalse(CatalogSnapshot.mayChangeCatalog(new SQL("insert into a select * from b")));
+        Assert.assertFalse(CatalogSnapshot.mayChangeCatalog(new Comment("drop everything")));
+    }
+
+    public void testSegments() {
+        final CatalogSnapshot snapshot = new CatalogSnapshot();
+        Assert.assertNull(snapshot.get("wasg2", CheckType.column, null));
+        snapshot.put("wasg2", CheckType.column, null, Collections.singleton(CatalogSnapshot.key("a", "x")));
+        Assert.assertTrue(snapshot.get("WASG2", CheckType.column, null).contains("A.X"));
+        Assert.assertNull(snapshot.get("wasg2", CheckType.index, "a"));
+        snapshot.clear();
+        Assert.assertTrue(snapshot.isEmpty());
+    }
+}
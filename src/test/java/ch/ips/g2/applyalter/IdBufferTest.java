@@ -0,0 +1,30 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class IdBufferTest {
+
+    public void testChunks() {
+        final long[] ids = new long[IdBuffer.CHUNK_SIZE + 10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 3L * i;
+        }
+        final IdBuffer buffer = IdBuffer.ofLongs(ids);
+        Assert.assertEquals(buffer.size(), ids.length);
+        Assert.assertTrue(buffer.isPrimitive());
+        Assert.assertEquals(buffer.getLong(IdBuffer.CHUNK_SIZE - 1), 3L * (IdBuffer.CHUNK_SIZE - 1));
+        Assert.assertEquals(buffer.getLong(IdBuffer.CHUNK_SIZE), 3L * IdBuffer.CHUNK_SIZE);
+        Assert.assertEquals(buffer.get(ids.length - 1, 0), 3L * (ids.length - 1));
+    }
+
+    public void testValueRows() {
+        final StringBuilder single = new StringBuilder();
+        DbInstance.appendRows(single, 3, 1);
+        Assert.assertEquals(single.toString(), "?,?,?");
+        final StringBuilder composite = new StringBuilder();
+        DbInstance.appendRows(composite, 2, 2);
+        Assert.assertEquals(composite.toString(), "(?,?),(?,?)");
+    }
+}
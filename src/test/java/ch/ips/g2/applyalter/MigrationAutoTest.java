@@ -0,0 +1,66 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class MigrationAutoTest {
+
+    private static MigrationAuto.Estimate estimate(boolean integerKey, long rows, long matching, Long minId,
+                                                   Long maxId) {
+        final MigrationAuto.Estimate e = new MigrationAuto.Estimate();
+        e.integerKey = integerKey;
+        e.rows = rows;
+        e.matching = matching;
+        e.minId = minId;
+        e.maxId = maxId;
+        return e;
+    }
+
+    public void testDenseRange() {
+        //every other ID exists, half of the rows match: four IDs per changed row
+        final MigrationAuto.Plan plan = MigrationAuto.choose(
+                estimate(true, 1000000, 500000, 1L, 2000000L), 10000, true);
+        Assert.assertEquals(plan.strategy, MigrationAuto.Strategy.RANGE);
+        Assert.assertEquals(plan.step, 40000);
+    }
+
+    public void testSelectiveFilter() {
+        final MigrationAuto.Plan plan = MigrationAuto.choose(
+                estimate(true, 1000000, 1000, 1L, 1000000L), 10000, true);
+        Assert.assertEquals(plan.strategy, MigrationAuto.Strategy.LIST);
+        Assert.assertEquals(plan.step, 10000);
+    }
+
+    public void testKeyset() {
+        //composite key
+        Assert.assertEquals(MigrationAuto.choose(estimate(false, 1000, 1000, null, null), 100, false).strategy,
+                MigrationAuto.Strategy.KEYSET);
+        //sparse IDs
+        Assert.assertEquals(MigrationAuto.choose(estimate(true, 1000, 1000, 1L, 1000000L), 100, false).strategy,
+                MigrationAuto.Strategy.KEYSET);
+        //empty table
+        Assert.assertEquals(MigrationAuto.choose(estimate(true, 0, 0, null, null), 100, false).strategy,
+                MigrationAuto.Strategy.KEYSET);
+    }
+
+    public void testStepLimitedBySpan() {
+        final MigrationAuto.Plan plan = MigrationAuto.choose(estimate(true, 50, 50, 1L, 50L), 10000, false);
+        Assert.assertEquals(plan.strategy, MigrationAuto.Strategy.RANGE);
+        Assert.assertEquals(plan.step, 50);
+    }
+
+    public void testFilterTakenLiterally() {
+        final MigrationAuto auto = new MigrationAuto();
+        auto.setFilter("code = 'US$' and name like 'a\\_%' escape '\\'");
+        for (MigrationAuto.Strategy strategy : MigrationAuto.Strategy.values()) {
+            final AbstractMigration.ProcessedQuery query = auto.processQuery("update t set x = 1 where AUTO_KEYS",
+                    auto.makeReplacement(strategy, "id"));
+            Assert.assertEquals(query.replacements, 1);
+            if (strategy != MigrationAuto.Strategy.LIST) {
+                Assert.assertTrue(query.statement.endsWith(
+                        "(code = 'US$' and name like 'a\\_%' escape '\\'))"), query.statement);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+@Test
+public class MigrationKeysetTest {
+
+    public void testSingleColumn() {
+        final MigrationKeyset.KeyCondition c = MigrationKeyset.makeKeyCondition(new String[]{"id"}, true, false);
+        Assert.assertEquals(c.sql, "(id > ?)");
+        Assert.assertEquals(c.params, Arrays.asList(0));
+    }
+
+    public void testRowValue() {
+        final MigrationKeyset.KeyCondition c =
+                MigrationKeyset.makeKeyCondition(new String[]{"a", "b"}, false, true);
+        Assert.assertEquals(c.sql, "((a,b) <= (?,?))");
+        Assert.assertEquals(c.params, Arrays.asList(0, 1));
+    }
+
+    public void testExpanded() {
+        final MigrationKeyset.KeyCondition gt =
+                MigrationKeyset.makeKeyCondition(new String[]{"a", "b", "c"}, true, false);
+        Assert.assertEquals(gt.sql, "((a > ?) or (a = ? and b > ?) or (a = ? and b = ? and c > ?))");
+        Assert.assertEquals(gt.params, Arrays.asList(0, 0, 1, 0, 1, 2));
+        final MigrationKeyset.KeyCondition le =
+                MigrationKeyset.makeKeyCondition(new String[]{"a", "b"}, false, false);
+        Assert.assertEquals(le.sql, "((a < ?) or (a = ? and b <= ?))");
+    }
+}
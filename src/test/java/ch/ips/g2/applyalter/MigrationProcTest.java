@@ -0,0 +1,33 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+@SuppressWarnings({"deprecation"})
+public class MigrationProcTest {
+
+    public void testRangeEngine() {
+        final MigrationProc proc = new MigrationProc("m1", 50L, "fill x",
+                "update t set x = 1 where id between BETWEEN_RANGE", 1L, 1000L, 100L);
+        final AbstractMigration engine = proc.createEngine();
+        Assert.assertTrue(engine instanceof MigrationIdRange);
+        final MigrationIdRange range = (MigrationIdRange) engine;
+        Assert.assertEquals(range.getFromid(), Long.valueOf(1));
+        Assert.assertEquals(range.getToid(), Long.valueOf(1000));
+        Assert.assertEquals(range.getStep(), Long.valueOf(100));
+        Assert.assertEquals(range.getMaxblkcnt(), Long.valueOf(50));
+        Assert.assertEquals(range.getLogid(), "m1");
+        //maxblkcnt stops the run, the next one continues from the checkpoint
+        Assert.assertEquals(range.getCheckpoint(), Boolean.TRUE);
+        Assert.assertEquals(range.getStatement(), proc.getStatement());
+    }
+
+    public void testRepeatEngine() {
+        final MigrationProc proc = new MigrationProc("m2", 10L, "purge",
+                "delete from t where id in (select id from t where x = 0 fetch first 1000 rows only)");
+        final AbstractMigration engine = proc.createEngine();
+        Assert.assertTrue(engine instanceof RepeatBatch);
+        Assert.assertEquals(engine.getMaxblkcnt(), Long.valueOf(10));
+    }
+}
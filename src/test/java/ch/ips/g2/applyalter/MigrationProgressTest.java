@@ -0,0 +1,80 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+@Test
+public class MigrationProgressTest {
+
+    private static long[] histogram(long... durations) {
+        final long[] histogram = new long[MigrationProgress.BUCKETS];
+        for (long d : durations) {
+            histogram[MigrationProgress.bucket(d)]++;
+        }
+        return histogram;
+    }
+
+    public void testPercentile() {
+        final long[] exact = histogram(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        Assert.assertEquals(MigrationProgress.percentile(exact, 10, 50), 5);
+        Assert.assertEquals(MigrationProgress.percentile(exact, 10, 95), 10);
+        Assert.assertEquals(MigrationProgress.percentile(histogram(), 0, 99), 0);
+        //bucket limit within about 3 %
+        final long p99 = MigrationProgress.percentile(histogram(10, 20, 100000), 3, 99);
+        Assert.assertTrue(p99 >= 100000 && p99 <= 103200, "p99 = " + p99);
+    }
+
+    public void testBuckets() {
+        for (long d = 0; d < 100000; d += 7) {
+            final int bucket = MigrationProgress.bucket(d);
+            Assert.assertTrue(MigrationProgress.bucketLimit(bucket) >= d, "limit of " + d);
+            Assert.assertTrue(bucket == 0 || MigrationProgress.bucketLimit(bucket - 1) < d, "previous of " + d);
+        }
+        Assert.assertTrue(MigrationProgress.bucket(Long.MAX_VALUE) < MigrationProgress.BUCKETS);
+        Assert.assertEquals(MigrationProgress.bucketLimit(MigrationProgress.bucket(Long.MAX_VALUE)), Long.MAX_VALUE);
+    }
+
+    public void testQuote() {
+        Assert.assertEquals(MigrationProgress.quote("a\"b\\c\n"), "\"a\\\"b\\\\c\\u000a\"");
+        Assert.assertEquals(MigrationProgress.quote(null), "null");
+    }
+
+    public void testTrace() throws IOException {
+        final File file = File.createTempFile("applyalter-trace", ".jsonl");
+        try {
+            final InternalRunContext ctx = new InternalRunContext();
+            final MigrationProgress progress = new MigrationProgress("mig1", "db1", 100, 0, file.getPath());
+            progress.batch(ctx, "1-50", 50, 10, 7);
+            progress.batch(ctx, "51-100", 50, 0, 3);
+            progress.finish(ctx);
+            final List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+            Assert.assertEquals(lines.size(), 2);
+            Assert.assertTrue(lines.get(0).startsWith(
+                    "{\"logid\":\"mig1\",\"instance\":\"db1\",\"batch\":1,\"position\":\"1-50\",\"processed\":50,"
+                            + "\"rows\":10,\"ms\":7,"), lines.get(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTraceOfPartition() throws IOException {
+        final File file = File.createTempFile("applyalter-trace", ".jsonl");
+        try {
+            final InternalRunContext ctx = new InternalRunContext();
+            final MigrationProgress progress = new MigrationProgress("mig1", "db1", "t_2024", 10, 0, file.getPath());
+            progress.batch(ctx, "1-10", 10, 10, 5);
+            progress.finish(ctx);
+            final List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+            Assert.assertTrue(lines.get(0).startsWith(
+                    "{\"logid\":\"mig1\",\"instance\":\"db1\",\"unit\":\"t_2024\",\"batch\":1,"), lines.get(0));
+        } finally {
+            file.delete();
+        }
+    }
+}
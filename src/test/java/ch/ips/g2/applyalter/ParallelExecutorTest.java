@@ -0,0 +1,81 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+@Test
+public class ParallelExecutorTest {
+
+    public void testReportsReplayedInItemOrder() {
+        StringWriter out = new StringWriter();
+        RunContext ctx = new PrintWriterRunContext(new PrintWriter(out), new PrintWriter(new StringWriter()));
+
+        final List<Integer> items = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8);
+        new ParallelExecutor(4).forEach(ctx, items, new ParallelExecutor.Worker<Integer>() {
+            public void run(Integer item, RunContext ctx) {
+                try {
+                    //reverse order of completion
+                    Thread.sleep(10 * (10 - item));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                ctx.report(ReportLevel.MAIN, "item %d", item);
+            }
+        });
+
+        final String log = out.toString();
+        for (int i = 1; i < items.size(); i++) {
+            Assert.assertTrue(log.indexOf("item " + i) < log.indexOf("item " + (i + 1)), log);
+        }
+    }
+
+    public void testFirstFailureRethrown() throws IOException {
+        RunContext ctx = new PrintWriterRunContext(new PrintWriter(new StringWriter()), new PrintWriter(new StringWriter()));
+        try {
+            new ParallelExecutor(3).forEach(ctx, Arrays.asList(1, 2, 3), new ParallelExecutor.Worker<Integer>() {
+                public void run(Integer item, RunContext ctx) {
+                    if (item > 1) {
+                        throw new ApplyAlterException("failed " + item);
+                    }
+                }
+            });
+            Assert.fail("exception expected");
+        } catch (ApplyAlterException e) {
+            Assert.assertEquals(e.getMessage(), "failed 2");
+        }
+    }
+
+    public void testSubreportsRecorded() {
+        final StringBuilder trace = new StringBuilder();
+        RunContext ctx = new InternalRunContext() {
+            @Override
+            public void subreport(String subreportName, Runnable run) {
+                trace.append('<').append(subreportName).append('>');
+                run.run();
+                trace.append("</").append(subreportName).append('>');
+            }
+
+            @Override
+            public void report(ReportLevel level, String format, Object... args) {
+                trace.append(String.format(format, args));
+            }
+        };
+
+        new ParallelExecutor(2).forEach(ctx, Arrays.asList("a", "b"), new ParallelExecutor.Worker<String>() {
+            public void run(final String item, final RunContext ctx) {
+                ctx.subreport("s", new Runnable() {
+                    public void run() {
+                        ctx.report(ReportLevel.MAIN, item);
+                    }
+                });
+            }
+        });
+        Assert.assertEquals(trace.toString(), "<s>a</s><s>b</s>");
+    }
+}
@@ -0,0 +1,102 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@Test
+public class RangeChunksTest {
+
+    public void testEqualSegments() {
+        final RangeChunks chunks = new RangeChunks(1, 100, 4, Collections.<Long>emptyList());
+        Assert.assertEquals(chunks.getSegmentCount(), 4);
+        //every ID is claimed exactly once, in ascending order within every segment
+        final boolean[] claimed = new boolean[101];
+        final int[] segments = new int[]{-1, -1, -1};
+        RangeChunks.Claim claim;
+        int worker = 0;
+        while ((claim = chunks.next(segments[worker], 7)) != null) {
+            segments[worker] = claim.getSegment();
+            for (long id = claim.getFrom(); id <= claim.getTo(); id++) {
+                Assert.assertFalse(claimed[(int) id], "claimed twice: " + id);
+                claimed[(int) id] = true;
+            }
+            worker = (worker + 1) % segments.length;
+        }
+        for (int id = 1; id <= 100; id++) {
+            Assert.assertTrue(claimed[id], "not claimed: " + id);
+        }
+    }
+
+    public void testBoundsAndStealing() {
+        final RangeChunks chunks = new RangeChunks(0, 99, 2, Arrays.asList(-5L, 10L, 20L, 500L));
+        Assert.assertEquals(chunks.getSegmentCount(), 3);
+        final RangeChunks.Claim first = chunks.next(-1, 5);
+        Assert.assertEquals(first.getFrom(), 0);
+        Assert.assertEquals(first.getTo(), 4);
+        Assert.assertEquals(chunks.next(first.getSegment(), 100).getTo(), 9);
+        //segment exhausted: the next unassigned one
+        Assert.assertEquals(chunks.next(first.getSegment(), 100).getFrom(), 10);
+        final RangeChunks.Claim last = chunks.next(-1, 30);
+        Assert.assertEquals(last.getFrom(), 20);
+        Assert.assertEquals(last.getTo(), 49);
+        //nothing unassigned: steal from the largest segment
+        final RangeChunks.Claim stolen = chunks.next(-1, 30);
+        Assert.assertEquals(stolen.getSegment(), last.getSegment());
+        Assert.assertEquals(stolen.getFrom(), 50);
+        Assert.assertEquals(chunks.next(-1, 30).getTo(), 99);
+        Assert.assertNull(chunks.next(-1, 30));
+    }
+
+    public void testSkip() {
+        final RangeChunks chunks = new RangeChunks(1, 1000, 2, Collections.<Long>emptyList());
+        final RangeChunks.Claim first = chunks.next(-1, 10);
+        //no IDs in 11..399
+        chunks.skipTo(first.getSegment(), 400L);
+        Assert.assertEquals(chunks.next(first.getSegment(), 10).getFrom(), 400);
+        //no more IDs in the segment
+        chunks.skipTo(first.getSegment(), null);
+        Assert.assertEquals(chunks.next(first.getSegment(), 10).getFrom(), 501);
+    }
+
+    public void testLowWatermark() {
+        final RangeChunks chunks = new RangeChunks(1, 100, 2, Collections.<Long>emptyList());
+        Assert.assertEquals(chunks.getLowWatermark(), Long.valueOf(1));
+        final RangeChunks.Claim first = chunks.next(-1, 10);
+        final RangeChunks.Claim second = chunks.next(-1, 10);
+        //the second segment has advanced further
+        chunks.next(second.getSegment(), 10);
+        Assert.assertEquals(chunks.getLowWatermark(), Long.valueOf(first.getTo() + 1));
+        while (chunks.next(-1, 10) != null) {
+            //claim everything
+        }
+        Assert.assertNull(chunks.getLowWatermark());
+    }
+
+    public void testCommittedWatermark() {
+        final RangeChunks chunks = new RangeChunks(1, 100, 2, Collections.<Long>emptyList());
+        final RangeChunks.Claim first = chunks.next(-1, 10);
+        final RangeChunks.Claim second = chunks.next(first.getSegment(), 10);
+        //the first step is still in flight
+        chunks.done(second);
+        Assert.assertEquals(chunks.getCommittedWatermark(), Long.valueOf(1));
+        chunks.done(first);
+        Assert.assertEquals(chunks.getCommittedWatermark(), Long.valueOf(21));
+        RangeChunks.Claim claim;
+        RangeChunks.Claim last = null;
+        while ((claim = chunks.next(-1, 10)) != null) {
+            if (last != null) {
+                chunks.done(claim);
+            } else {
+                last = claim;
+            }
+        }
+        //everything claimed, but one step has not been committed
+        Assert.assertNull(chunks.getLowWatermark());
+        Assert.assertEquals(chunks.getCommittedWatermark(), Long.valueOf(last.getFrom()));
+        chunks.done(last);
+        Assert.assertNull(chunks.getCommittedWatermark());
+    }
+}
@@ -0,0 +1,60 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TableFootprintTest {
+
+    public void testDml() {
+        Assert.assertEquals(TableFootprint.analyze("insert into s.a (id, x) select b.id, 'from c' from b join d on b.id = d.id").toString(),
+                "reads [B, D], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("update a set x = 1 where id in (select id from b x, c y)").toString(),
+                "reads [B, C], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("delete from a where id BETWEEN_RANGE").toString(),
+                "reads [], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("merge into a using b on a.id = b.id when matched then update set x = 1").toString(),
+                "reads [B], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("with t as (select * from b) select * from t").toString(),
+                "reads [B], writes []");
+    }
+
+    public void testDdl() {
+        Assert.assertEquals(TableFootprint.analyze("-- comment\ncreate table s.a (id int references s.b (id))").toString(),
+                "reads [B], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("create unique index a_idx on s.a (id); comment on column a.x is 'x'").toString(),
+                "reads [], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("grant select on table a to public").toString(),
+                "reads [], writes [A]");
+        Assert.assertEquals(TableFootprint.analyze("alter table a add column x varchar(10) default 'x'").toString(),
+                "reads [], writes [A]");
+    }
+
+    public void testTableLists() {
+        Assert.assertEquals(TableFootprint.analyze("drop table if exists a, s.b").toString(), "reads [], writes [A, B]");
+        Assert.assertEquals(TableFootprint.analyze("truncate table a, b").toString(), "reads [], writes [A, B]");
+        Assert.assertEquals(TableFootprint.analyze("lock table a, b in exclusive mode").toString(),
+                "reads [], writes [A, B]");
+        Assert.assertEquals(TableFootprint.analyze("alter table a rename to b").toString(), "reads [], writes [A, B]");
+        Assert.assertEquals(TableFootprint.analyze("delete from a using b, c where a.id = b.id").toString(),
+                "reads [B, C], writes [A]");
+        Assert.assertFalse(TableFootprint.analyze("truncate table a cascade").isKnown());
+    }
+
+    public void testUnknown() {
+        Assert.assertFalse(TableFootprint.analyze("call sysproc.admin_cmd('reorg table a')").isKnown());
+        Assert.assertFalse(TableFootprint.analyze("select g2fn.blockupdate('x')").isKnown());
+        Assert.assertFalse(TableFootprint.analyze("select purge_old_rows()").isKnown());
+        Assert.assertTrue(TableFootprint.analyze("select count(*), coalesce(max(id), 0) from a").isKnown());
+        Assert.assertTrue(TableFootprint.analyze("with t (x) as (select id from b) select x from t").isKnown());
+        Assert.assertFalse(TableFootprint.analyze("do $$ begin perform 1; end $$").isKnown());
+        Assert.assertFalse(TableFootprint.analyze("select * from a for update").isKnown());
+    }
+
+    public void testConflicts() {
+        final TableFootprint readB = TableFootprint.analyze("select * from b");
+        Assert.assertFalse(readB.conflictsWith(TableFootprint.analyze("select * from s.b")));
+        Assert.assertTrue(readB.conflictsWith(TableFootprint.analyze("update S.B set x = 1")));
+        Assert.assertTrue(readB.conflictsWith(TableFootprint.UNKNOWN));
+    }
+}
@@ -0,0 +1,27 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ThrottleTest {
+
+    public void testTokenBucket() {
+        final Throttle.TokenBucket bucket = new Throttle.TokenBucket(1000);
+        final long now = System.currentTimeMillis();
+        //the first second is free (burst)
+        Assert.assertEquals(bucket.take(1000, now), 0);
+        //500 rows over the limit: half a second
+        Assert.assertEquals(bucket.take(500, now), 500);
+        //the debt has been paid and 200 ms more refilled
+        Assert.assertEquals(bucket.take(200, now + 700), 0);
+    }
+
+    public void testShrink() {
+        final InternalRunContext ctx = new InternalRunContext();
+        Assert.assertEquals(new AdaptiveStep(100).shrink(ctx), 100);
+        final AdaptiveStep adaptive = new AdaptiveStep(100, 1000, 30, 1000);
+        Assert.assertEquals(adaptive.shrink(ctx), 50);
+        Assert.assertEquals(adaptive.shrink(ctx), 30);
+    }
+}